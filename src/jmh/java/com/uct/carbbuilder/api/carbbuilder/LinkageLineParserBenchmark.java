@@ -0,0 +1,54 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the linkage lines of the recorded CarbBuilder output in testpdb/, repeated to the size of a
+ * large repeating unit build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkageLineParserBenchmark
+{
+    @Param({"1", "100"})
+    private int repeats;
+
+    private List<String> lines;
+
+    private StringBuilder linkages;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        List<String> recorded = Files.readAllLines(Paths.get("testpdb/carbbuilder_output.txt"), StandardCharsets.UTF_8);
+        lines = new ArrayList<>();
+        for (int i = 0; i < repeats; i++)
+            lines.addAll(recorded);
+        linkages = new StringBuilder();
+    }
+
+    @Benchmark
+    public void parseOutput(Blackhole blackhole)
+    {
+        linkages.setLength(0);
+        for (String line : lines)
+        {
+            if (LinkageLineParser.isLinkageLine(line))
+                LinkageLineParser.appendLinkage(line, linkages);
+        }
+        blackhole.consume(linkages.length());
+    }
+}
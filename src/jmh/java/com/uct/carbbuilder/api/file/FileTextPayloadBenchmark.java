@@ -0,0 +1,87 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a PDB file and renders the /file/text body for it. The one residue size is the testpdb/test1.pdb
+ * fixture as it is, larger sizes repeat its atoms to the size of a long polymer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTextPayloadBenchmark
+{
+    @Param({"1", "500"})
+    private int repeats;
+
+    private Path pdbFile;
+
+    private String pdb;
+
+    private PdbBuild build;
+
+    private PdbEntry entry;
+
+    @Setup
+    public void setUp() throws IOException, NoSuchAlgorithmException
+    {
+        List<String> fixture = Files.readAllLines(Paths.get("testpdb/test1.pdb"), StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < repeats; i++)
+        {
+            for (String line : fixture)
+            {
+                if (i == 0 || line.startsWith("ATOM"))
+                    lines.add(line);
+            }
+        }
+        pdbFile = Files.createTempFile("benchmark", ".pdb");
+        Files.write(pdbFile, lines, StandardCharsets.UTF_8);
+        pdb = PDBFileController.fileToString(pdbFile.toString());
+
+        build = new PdbBuild("aDMan(1->3)aDMan", repeats, "1.0", "");
+        build.setBuildSuccess();
+        entry = new PdbEntry(1);
+        entry.setLinkages(new String(Files.readAllBytes(Paths.get("testpdb/carbbuilder_linkages.txt")), StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(pdbFile);
+    }
+
+    @Benchmark
+    public String fileToString() throws IOException
+    {
+        return PDBFileController.fileToString(pdbFile.toString());
+    }
+
+    @Benchmark
+    public String render()
+    {
+        return FileTextPayload.render(build, entry, pdb);
+    }
+
+    @Benchmark
+    public byte[] readAndRender() throws IOException
+    {
+        return FileTextPayload.render(build, entry, PDBFileController.fileToString(pdbFile.toString())).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.uct.carbbuilder.config.security.token;
+
+import com.uct.carbbuilder.config.security.user.UserDetailsImpl;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticates a bearer token the way AuthTokenFilter does, verifying it on the first request and
+ * reading it from the verified token cache after that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtUtilsBenchmark
+{
+    private static final String SECRET = "carbbuilderBenchmarkSecretKey";
+
+    private JwtUtils jwtUtils;
+
+    private String token;
+
+    private VerifiedTokenCache verifiedTokens;
+
+    @Setup
+    public void setUp()
+    {
+        jwtUtils = new JwtUtils();
+        ReflectionTestUtils.setField(jwtUtils, "jwtSecret", SECRET);
+        ReflectionTestUtils.setField(jwtUtils, "jwtExpirationMs", 86400000);
+        token = Jwts.builder()
+                .setSubject("benchmark")
+                .claim("id", 1L)
+                .claim("email", "benchmark@example.com")
+                .claim("roles", Collections.singletonList("ROLE_USER"))
+                .setIssuedAt(new Date())
+                .setExpiration(new Date(System.currentTimeMillis() + 86400000L))
+                .signWith(SignatureAlgorithm.HS512, SECRET)
+                .compact();
+        verifiedTokens = new VerifiedTokenCache(1000, new SimpleMeterRegistry());
+        Claims claims = jwtUtils.parseJwtToken(token);
+        verifiedTokens.put(token, jwtUtils.getPrincipal(claims), claims.getExpiration());
+    }
+
+    @Benchmark
+    public UserDetailsImpl verify()
+    {
+        return jwtUtils.getPrincipal(jwtUtils.parseJwtToken(token));
+    }
+
+    @Benchmark
+    public UserDetailsImpl cached()
+    {
+        return verifiedTokens.get(token);
+    }
+}
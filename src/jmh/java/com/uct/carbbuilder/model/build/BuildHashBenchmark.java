@@ -0,0 +1,59 @@
+package com.uct.carbbuilder.model.build;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes build inputs the way every submission and status lookup does, for a disaccharide and for a
+ * synthetic polymer with a custom dihedral line per linkage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildHashBenchmark
+{
+    @Param({"2", "200"})
+    private int residues;
+
+    private String casperInput;
+
+    private String customDihedral;
+
+    @Setup
+    public void setUp()
+    {
+        StringBuilder casper = new StringBuilder("aDMan");
+        StringBuilder dihedrals = new StringBuilder();
+        for (int i = 1; i < residues; i++)
+        {
+            casper.append(i % 10 == 0 ? " (1-6) " : "(1->3)").append("aDMan");
+            dihedrals.append("#").append(i + 1).append(" aDMan 1 3 #").append(i).append(" aDMan ")
+                    .append(60.0 + i % 7).append(" -120.50\n");
+        }
+        casperInput = casper.toString();
+        customDihedral = dihedrals.toString();
+    }
+
+    @Benchmark
+    public String buildHash() throws NoSuchAlgorithmException
+    {
+        return PdbBuild.getBuildHash(casperInput, 3, "1.0", customDihedral);
+    }
+
+    @Benchmark
+    public String legacyBuildHash() throws NoSuchAlgorithmException
+    {
+        return PdbBuild.getLegacyBuildHash(casperInput, 3, "1.0", customDihedral);
+    }
+
+    @Benchmark
+    public String canonicalDihedrals()
+    {
+        return BuildInputCanonicalizer.dihedrals(customDihedral);
+    }
+}
@@ -0,0 +1,386 @@
+package com.uct.carbbuilder.loadtest;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the submit, wait and download flow of the service and reports throughput, latency
+ * percentiles and the server's thread and open file descriptor counts, which are read from its
+ * Prometheus endpoint once a second.
+ * <p>
+ * Without --url it starts the service itself on a free port, with an H2 database and
+ * {@link StubCarbBuilder} in place of CarbBuilder, working in target/loadtest. Options are given as
+ * name=value:
+ * <ul>
+ *     <li>builds (200): structures to submit</li>
+ *     <li>concurrency (16): clients submitting and waiting at once</li>
+ *     <li>distinct (1.0): fraction of the submissions that are distinct structures, the rest repeat them</li>
+ *     <li>residues (8): largest structure submitted, sizes cycle from 2 residues up to it</li>
+ *     <li>wait (30): seconds each long-poll of /file/text waits for the build</li>
+ *     <li>url: base URL of a running service, e.g. http://localhost:8080/carbbuilder</li>
+ * </ul>
+ * The stub is configured by the STUB_* variables described on {@link StubCarbBuilder}, which the
+ * started service passes on to it.
+ */
+public class LoadDriver
+{
+    private static final String[] RESIDUES = {"aDMan", "aDGlc", "bDGal", "bDGlcNAc", "aLRha", "aDGlcA"};
+    private static final String[] LINKAGES = {"(1->2)", "(1->3)", "(1->4)", "(1->6)"};
+
+    private final String baseUrl;
+    private final int builds;
+    private final int concurrency;
+    private final int distinct;
+    private final int maxResidues;
+    private final int waitSeconds;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final List<Long> submitMs = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> completeMs = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> downloadMs = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, double[]> serverGauges = new LinkedHashMap<>();
+
+    private LoadDriver(String baseUrl, Map<String, String> options)
+    {
+        this.baseUrl = baseUrl;
+        this.builds = Integer.parseInt(options.getOrDefault("builds", "200"));
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        this.distinct = Math.max(1, (int) Math.round(builds * Double.parseDouble(options.getOrDefault("distinct", "1.0"))));
+        this.maxResidues = Math.max(2, Integer.parseInt(options.getOrDefault("residues", "8")));
+        this.waitSeconds = Integer.parseInt(options.getOrDefault("wait", "30"));
+        serverGauges.put("jvm_threads_live_threads", new double[]{Double.NaN, 0});
+        serverGauges.put("process_files_open_files", new double[]{Double.NaN, 0});
+        serverGauges.put("carbbuilder_workers_active", new double[]{Double.NaN, 0});
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args)
+        {
+            if (!arg.contains("="))
+                throw new IllegalArgumentException("Options are given as name=value, not " + arg);
+            options.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        Process server = null;
+        String baseUrl = options.get("url");
+        try
+        {
+            if (baseUrl == null)
+            {
+                int port;
+                try (ServerSocket socket = new ServerSocket(0))
+                {
+                    port = socket.getLocalPort();
+                }
+                server = startServer(port);
+                baseUrl = "http://localhost:" + port + "/carbbuilder";
+                awaitHealthy(baseUrl, server);
+            }
+            new LoadDriver(baseUrl, options).run();
+        }
+        finally
+        {
+            if (server != null)
+            {
+                server.destroy();
+                if (!server.waitFor(30, TimeUnit.SECONDS))
+                    server.destroyForcibly();
+            }
+        }
+    }
+
+    private static Process startServer(int port) throws IOException
+    {
+        File workingDirectory = new File("target/loadtest").getAbsoluteFile();
+        workingDirectory.mkdirs();
+        String classPath = System.getProperty("java.class.path");
+        ProcessBuilder builder = new ProcessBuilder("java", "-cp", classPath, "com.uct.carbbuilder.CarbBuilderApplication",
+                "--server.port=" + port,
+                "--spring.config.additional-location=file:" + new File("src/loadtest/resources/loadtest.properties").getAbsolutePath(),
+                "--twoody.app.carbbuilderurl=" + new File("src/loadtest/stub-carbbuilder.sh").getAbsolutePath());
+        builder.directory(workingDirectory);
+        builder.environment().put("STUB_CLASSPATH", classPath);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(workingDirectory, "server.log"));
+        System.out.println("Starting the service on port " + port + ", log in " + workingDirectory + "/server.log");
+        return builder.start();
+    }
+
+    private static void awaitHealthy(String baseUrl, Process server) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(3);
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (!server.isAlive())
+                throw new IllegalStateException("The service exited with " + server.exitValue() + ", see target/loadtest/server.log");
+            try
+            {
+                if (request("GET", baseUrl + "/actuator/health", null).status == 200)
+                    return;
+            }
+            catch (IOException e)
+            {
+                // Not listening yet
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("The service did not start within 3 minutes");
+    }
+
+    private void run() throws Exception
+    {
+        System.out.println(String.format(Locale.ROOT, "Submitting %d builds (%d distinct) from %d clients to %s",
+                builds, distinct, concurrency, baseUrl));
+        sampleServer();
+        double[] idle = new double[serverGauges.size()];
+        int g = 0;
+        for (double[] gauge : serverGauges.values())
+            idle[g++] = gauge[0];
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++)
+            clients.execute(this::client);
+        clients.shutdown();
+        while (!clients.awaitTermination(1, TimeUnit.SECONDS))
+            sampleServer();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        sampleServer();
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "Completed %d builds in %.1f s, %.2f builds/s",
+                completeMs.size(), elapsedMs / 1000.0, completeMs.size() * 1000.0 / elapsedMs));
+        System.out.println(String.format(Locale.ROOT, "  succeeded %d, failed %d, timed out %d, errors %d, rejected submissions %d",
+                succeeded.get(), failed.get(), timedOut.get(), errors.get(), rejected.get()));
+        System.out.println(String.format(Locale.ROOT, "  downloaded %.1f MB", downloadedBytes.get() / 1048576.0));
+        System.out.println(String.format(Locale.ROOT, "%-26s %8s %8s %8s %8s", "latency (ms)", "p50", "p90", "p99", "max"));
+        printPercentiles("submit", submitMs);
+        printPercentiles("submit to done", completeMs);
+        printPercentiles("download", downloadMs);
+        System.out.println(String.format(Locale.ROOT, "%-26s %8s %8s %8s", "server", "idle", "last", "max"));
+        g = 0;
+        for (Map.Entry<String, double[]> gauge : serverGauges.entrySet())
+        {
+            System.out.println(String.format(Locale.ROOT, "%-26s %8.0f %8.0f %8.0f",
+                    gauge.getKey(), idle[g++], gauge.getValue()[0], gauge.getValue()[1]));
+        }
+    }
+
+    private void client()
+    {
+        for (int i = next.getAndIncrement(); i < builds; i = next.getAndIncrement())
+        {
+            try
+            {
+                build(structure(i % distinct));
+            }
+            catch (Exception e)
+            {
+                errors.incrementAndGet();
+                System.out.println("Build " + i + ": " + e);
+            }
+        }
+    }
+
+    private void build(String casper) throws Exception
+    {
+        JSONObject body = new JSONObject();
+        body.put("casperInput", casper);
+        body.put("noRepeatingUnits", 1);
+        body.put("customDihedral", "");
+
+        long start = System.nanoTime();
+        Response submitted;
+        while ((submitted = request("POST", baseUrl + "/carbbuilder/build", body.toJSONString())).status == 503)
+        {
+            rejected.incrementAndGet();
+            String retryAfter = submitted.header("Retry-After");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(retryAfter == null ? 1 : Long.parseLong(retryAfter)));
+        }
+        if (submitted.status != 202)
+            throw new IOException("Submission answered " + submitted.status + ": " + submitted.text());
+        submitMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        String buildHash = submitted.text();
+
+        Number status;
+        do
+        {
+            Response text = request("GET", baseUrl + "/file/text/" + buildHash + "?wait=" + waitSeconds, null);
+            status = (Number) ((JSONObject) JSONValue.parse(text.text())).get("buildStatus");
+        }
+        while (status == null || status.intValue() == 0);
+        completeMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (status.intValue() == 1)
+        {
+            succeeded.incrementAndGet();
+            long downloadStart = System.nanoTime();
+            Response pdb = request("GET", baseUrl + "/file/download/pdb/" + buildHash, null);
+            if (pdb.status != 200)
+                throw new IOException("Download answered " + pdb.status);
+            downloadMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downloadStart));
+            downloadedBytes.addAndGet(pdb.body.length);
+        }
+        else if (status.intValue() == 3)
+            timedOut.incrementAndGet();
+        else
+            failed.incrementAndGet();
+    }
+
+    /**
+     * A chain of at least 2 and usually at most {@code residues} residues. The index picks the length,
+     * and the rest of it is written out in the choice of residues and linkages, so every index gets
+     * its own structure.
+     */
+    private String structure(int index)
+    {
+        int residues = 2 + index % (maxResidues - 1);
+        int variant = index / (maxResidues - 1);
+        StringBuilder casper = new StringBuilder(RESIDUES[variant % RESIDUES.length]);
+        variant /= RESIDUES.length;
+        for (int i = 1; i < residues || variant > 0; i++)
+        {
+            casper.append(LINKAGES[variant % LINKAGES.length]);
+            variant /= LINKAGES.length;
+            casper.append(RESIDUES[variant % RESIDUES.length]);
+            variant /= RESIDUES.length;
+        }
+        return casper.toString();
+    }
+
+    /**
+     * Reads the gauges in {@link #serverGauges} from the Prometheus endpoint, keeping the latest and
+     * largest value of each.
+     */
+    private void sampleServer()
+    {
+        try
+        {
+            Response metrics = request("GET", baseUrl + "/actuator/prometheus", null);
+            if (metrics.status != 200)
+                return;
+            Map<String, Double> totals = new LinkedHashMap<>();
+            for (String line : metrics.text().split("\n"))
+            {
+                for (String name : serverGauges.keySet())
+                {
+                    if (line.startsWith(name + "{") || line.startsWith(name + " "))
+                        totals.merge(name, Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)), Double::sum);
+                }
+            }
+            for (Map.Entry<String, Double> total : totals.entrySet())
+            {
+                double[] gauge = serverGauges.get(total.getKey());
+                gauge[0] = total.getValue();
+                gauge[1] = Math.max(gauge[1], total.getValue());
+            }
+        }
+        catch (IOException e)
+        {
+            // Left out of the report
+        }
+    }
+
+    private static void printPercentiles(String name, List<Long> samples)
+    {
+        long[] sorted;
+        synchronized (samples)
+        {
+            sorted = samples.stream().mapToLong(Long::longValue).toArray();
+        }
+        if (sorted.length == 0)
+            return;
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.ROOT, "%-26s %8d %8d %8d %8d", name,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), sorted[sorted.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double p)
+    {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static Response request(String method, String url, String json) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(120000);
+        if (json != null)
+        {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream())
+            {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null)
+        {
+            try (InputStream stream = in)
+            {
+                byte[] buffer = new byte[65536];
+                for (int read; (read = stream.read(buffer)) >= 0; )
+                    body.write(buffer, 0, read);
+            }
+        }
+        return new Response(status, connection, body.toByteArray());
+    }
+
+    private static class Response
+    {
+        private final int status;
+        private final HttpURLConnection connection;
+        private final byte[] body;
+
+        private Response(int status, HttpURLConnection connection, byte[] body)
+        {
+            this.status = status;
+            this.connection = connection;
+            this.body = body;
+        }
+
+        private String header(String name)
+        {
+            return connection.getHeaderField(name);
+        }
+
+        private String text()
+        {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.uct.carbbuilder.loadtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for CarbBuilder2.exe so the service can be load tested without mono. It takes the same
+ * arguments the service passes (-i, -o, -r, -d and -PSF), prints the console output the service parses
+ * and writes a PDB, and with -PSF a PSF, sized to the structure. It is configured through the
+ * environment it inherits from the service:
+ * <ul>
+ *     <li>STUB_BASE_MS, STUB_PER_RESIDUE_MS: median run time, plus an allowance per residue built</li>
+ *     <li>STUB_SIGMA: spread of the log-normal run time around that median, 0 for a fixed time</li>
+ *     <li>STUB_ATOMS_PER_RESIDUE: atoms written per residue built, which sets the output size</li>
+ *     <li>STUB_UNSUPPORTED: comma separated residues that fail as "not yet supported"</li>
+ *     <li>STUB_FAIL_RATE: fraction of the other builds that fail the same way at random</li>
+ * </ul>
+ * Run times and failures are drawn from a generator seeded by the arguments, so a structure behaves
+ * the same every time it is built.
+ */
+public class StubCarbBuilder
+{
+    private static final Pattern LINKAGE = Pattern.compile("\\((\\d+)->(\\d+)\\)");
+    private static final Pattern RESIDUE_NUMBER = Pattern.compile("^#\\d+");
+
+    private static final String[] ATOM_NAMES = {"C1", "C2", "C3", "C4", "C5", "C6", "O1", "O2", "O3", "O4", "O5", "O6",
+            "H1", "H2", "H3", "H4", "H5", "H61", "H62", "HO2", "HO3", "HO4", "HO6"};
+
+    public static void main(String[] args) throws Exception
+    {
+        String casper = null;
+        String output = null;
+        int repeatingUnits = 1;
+        String dihedralFile = null;
+        boolean psf = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-i": casper = args[++i]; break;
+                case "-o": output = args[++i]; break;
+                case "-r": repeatingUnits = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "-d": dihedralFile = args[++i]; break;
+                case "-PSF": psf = true; break;
+                default:
+                    System.out.println("Unknown argument " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (casper == null || output == null)
+        {
+            System.out.println("Usage: CarbBuilder2 -i <casper> -o <output> [-r <units>] [-d <dihedrals>] [-PSF]");
+            System.exit(1);
+        }
+
+        PrintStream out = System.out;
+        out.println("CarbBuilder2 version 2.1.24 (stub)");
+        List<String> residues = new ArrayList<>();
+        List<String> linkages = new ArrayList<>();
+        parse(casper, residues, linkages);
+        if (dihedralFile != null && !new File(dihedralFile).isFile())
+        {
+            out.println("Could not read dihedral file " + dihedralFile);
+            System.exit(1);
+        }
+
+        Random random = new Random(Arrays.hashCode(args));
+        int built = residues.size() * repeatingUnits;
+        long runMs = Math.round((env("STUB_BASE_MS", 2000) + env("STUB_PER_RESIDUE_MS", 50) * built)
+                * Math.exp(env("STUB_SIGMA", 0.5) * random.nextGaussian()));
+        String unsupported = unsupported(residues, random);
+
+        long linkageMs = runMs / Math.max(1, built);
+        for (int unit = 0; unit < repeatingUnits; unit++)
+        {
+            for (int i = 0; i < residues.size(); i++)
+            {
+                int number = unit * residues.size() + i + 1;
+                out.println("...[InputLoader.checkLinkageCorrect]: checking residue #" + number);
+                Thread.sleep(linkageMs);
+                if (unsupported != null && number * 2 > built)
+                {
+                    out.println("Error: residue {" + unsupported + "} is not yet supported");
+                    System.exit(2);
+                }
+            }
+        }
+
+        out.println("FINAL structure");
+        for (int unit = 0; unit < repeatingUnits; unit++)
+        {
+            for (int i = 1; i < residues.size() + (unit + 1 < repeatingUnits ? 1 : 0); i++)
+            {
+                int number = unit * residues.size() + i + 1;
+                String linkage = linkages.get((i - 1) % Math.max(1, linkages.size()));
+                String residue = residues.get(i % residues.size());
+                String parent = residues.get(i - 1);
+                if (linkage.endsWith("6)"))
+                    out.println(String.format(Locale.ROOT, "FINAL linkage  (3-bond linkage): #%d %s %s #%d %s: %.2f, %.2f, %.2f",
+                            number, residue, linkage, number - 1, parent, angle(random), angle(random), angle(random)));
+                else
+                    out.println(String.format(Locale.ROOT, "FINAL linkage: #%d %s %s #%d %s: %.2f, %.2f",
+                            number, residue, linkage, number - 1, parent, angle(random), angle(random)));
+            }
+        }
+
+        writePdb(output + ".pdb", casper, residues, repeatingUnits, random);
+        if (psf)
+            writePsf(output + ".psf", residues, repeatingUnits);
+    }
+
+    /**
+     * Splits CASPER into its residues and linkages. Branches are flattened, which only changes the
+     * numbering the stub prints, not the amount of work or output.
+     */
+    private static void parse(String casper, List<String> residues, List<String> linkages)
+    {
+        Matcher matcher = LINKAGE.matcher(casper);
+        int start = 0;
+        while (matcher.find())
+        {
+            addResidue(casper.substring(start, matcher.start()), residues);
+            linkages.add("(" + matcher.group(1) + "->" + matcher.group(2) + ")");
+            start = matcher.end();
+        }
+        addResidue(casper.substring(start), residues);
+        if (residues.isEmpty())
+            residues.add("aDGlc");
+    }
+
+    private static void addResidue(String token, List<String> residues)
+    {
+        String residue = RESIDUE_NUMBER.matcher(token.replace("[", "").replace("]", "").trim()).replaceAll("");
+        if (!residue.isEmpty())
+            residues.add(residue);
+    }
+
+    private static String unsupported(List<String> residues, Random random)
+    {
+        String configured = System.getenv("STUB_UNSUPPORTED");
+        if (configured != null)
+        {
+            for (String name : configured.split(","))
+            {
+                for (String residue : residues)
+                {
+                    if (!name.trim().isEmpty() && residue.endsWith(name.trim()))
+                        return residue;
+                }
+            }
+        }
+        if (random.nextDouble() < env("STUB_FAIL_RATE", 0))
+            return residues.get(random.nextInt(residues.size()));
+        return null;
+    }
+
+    private static void writePdb(String path, String casper, List<String> residues, int repeatingUnits, Random random) throws IOException
+    {
+        int atomsPerResidue = (int) env("STUB_ATOMS_PER_RESIDUE", 24);
+        File file = new File(path);
+        if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))
+        {
+            writer.write("REMARK Structure built by CarbBuilder: " + casper + "\n");
+            writer.write("REMARK Built by the load test stub\n");
+            int atom = 1;
+            for (int residue = 0; residue < residues.size() * repeatingUnits; residue++)
+            {
+                String name = pdbName(residues.get(residue % residues.size()));
+                for (int i = 0; i < atomsPerResidue; i++)
+                {
+                    String atomName = ATOM_NAMES[i % ATOM_NAMES.length];
+                    writer.write(String.format(Locale.ROOT, "ATOM  %5d  %-3s %-4s %4d    %8.2f%8.2f%8.2f  0.00  0.00 %-4s\n",
+                            atom++, atomName, name, residue + 1, coordinate(random), coordinate(random), residue * 5.5 + coordinate(random), atomName));
+                }
+            }
+            writer.write("END\n");
+        }
+    }
+
+    private static void writePsf(String path, List<String> residues, int repeatingUnits) throws IOException
+    {
+        int atomsPerResidue = (int) env("STUB_ATOMS_PER_RESIDUE", 24);
+        int atoms = residues.size() * repeatingUnits * atomsPerResidue;
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))
+        {
+            writer.write("PSF\n\n       1 !NTITLE\n REMARKS Built by the load test stub\n\n");
+            writer.write(String.format(Locale.ROOT, "%8d !NATOM\n", atoms));
+            for (int atom = 0; atom < atoms; atom++)
+            {
+                int residue = atom / atomsPerResidue;
+                String atomName = ATOM_NAMES[atom % atomsPerResidue % ATOM_NAMES.length];
+                writer.write(String.format(Locale.ROOT, "%8d SUGA %-4d %-4s %-4s %-4s %10.6f %13.4f           0\n",
+                        atom + 1, residue + 1, pdbName(residues.get(residue % residues.size())), atomName, atomName.substring(0, 1), 0.0, 12.011));
+            }
+        }
+    }
+
+    private static String pdbName(String residue)
+    {
+        String name = residue.length() > 2 ? residue.substring(2) : residue;
+        return (residue.charAt(0) + name).toUpperCase(Locale.ROOT).substring(0, Math.min(4, name.length() + 1));
+    }
+
+    private static double angle(Random random)
+    {
+        return random.nextDouble() * 360 - 180;
+    }
+
+    private static double coordinate(Random random)
+    {
+        return random.nextDouble() * 6 - 3;
+    }
+
+    private static double env(String name, double defaultValue)
+    {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+    }
+}
@@ -0,0 +1,6 @@
+#!/bin/sh
+# Launches StubCarbBuilder in place of CarbBuilder2.exe. LoadDriver points twoody.app.carbbuilderurl
+# here and passes the class path in STUB_CLASSPATH. The JVM is kept small and quick to start, since
+# one is started per build.
+exec java -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xss256k -Xmx64m -Xshare:auto \
+    -cp "$STUB_CLASSPATH" com.uct.carbbuilder.loadtest.StubCarbBuilder "$@"
@@ -2,8 +2,10 @@ package com.uct.carbbuilder;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class CarbBuilderApplication {
 
     public static void main(String[] args)
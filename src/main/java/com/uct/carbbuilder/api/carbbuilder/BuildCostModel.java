@@ -0,0 +1,197 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Estimates how long CarbBuilder will run for a build. The estimate is a least squares fit over the
+ * measured durations of recent successful builds. Its features are the number of residues built (each
+ * repeating unit builds the structure again), its square, as every new residue is checked against
+ * those already placed, the branches built, the repeating units and whether custom dihedrals are given.
+ * Until there is enough history a per residue prior is used.
+ */
+@Component
+public class BuildCostModel
+{
+    private static final Logger logger = LoggerFactory.getLogger(BuildCostModel.class);
+
+    private static final int FEATURES = 6;
+    private static final double RIDGE = 1e-3;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Value("${twoody.app.cost.trainingsize}")
+    private int trainingSize;
+
+    @Value("${twoody.app.cost.minsamples}")
+    private int minSamples;
+
+    @Value("${twoody.app.cost.priorbasems}")
+    private long priorBaseMs;
+
+    @Value("${twoody.app.cost.priorperresiduems}")
+    private long priorPerResidueMs;
+
+    private volatile double[] coefficients;
+    private volatile int samples;
+    private volatile double meanAbsoluteErrorMs;
+
+    public BuildCostModel()
+    {
+    }
+
+    public BuildCostModel(long priorBaseMs, long priorPerResidueMs)
+    {
+        this.priorBaseMs = priorBaseMs;
+        this.priorPerResidueMs = priorPerResidueMs;
+    }
+
+    public long estimateMs(PdbBuild build)
+    {
+        double[] x = features(build);
+        double[] beta = coefficients;
+        if (beta == null)
+            return priorBaseMs + priorPerResidueMs * (long) x[1];
+
+        double estimate = 0;
+        for (int i = 0; i < FEATURES; i++)
+            estimate += beta[i] * x[i];
+        return Math.max(0, Math.round(estimate));
+    }
+
+    @Scheduled(fixedDelayString = "${twoody.app.cost.retrainms}")
+    public void train()
+    {
+        List<PdbBuild> history = pdbBuildAccess.findRecentlyMeasured(trainingSize);
+        if (history.size() < minSamples)
+            return;
+
+        fit(history);
+        logger.info("Trained build cost model on {} builds, mean absolute error {} ms", samples, Math.round(meanAbsoluteErrorMs));
+    }
+
+    /**
+     * Solves the ridge regularised normal equations, leaving the intercept unpenalised.
+     */
+    void fit(List<PdbBuild> history)
+    {
+        double[][] xtx = new double[FEATURES][FEATURES + 1];
+        for (PdbBuild build : history)
+        {
+            double[] x = features(build);
+            for (int i = 0; i < FEATURES; i++)
+            {
+                for (int j = 0; j < FEATURES; j++)
+                    xtx[i][j] += x[i] * x[j];
+                xtx[i][FEATURES] += x[i] * build.getBuildDurationMs();
+            }
+        }
+        for (int i = 1; i < FEATURES; i++)
+            xtx[i][i] += RIDGE * (1 + xtx[i][i]);
+
+        double[] beta = solve(xtx);
+        if (beta == null)
+            return;
+
+        double error = 0;
+        for (PdbBuild build : history)
+        {
+            double[] x = features(build);
+            double estimate = 0;
+            for (int i = 0; i < FEATURES; i++)
+                estimate += beta[i] * x[i];
+            error += Math.abs(Math.max(0, estimate) - build.getBuildDurationMs());
+        }
+
+        coefficients = beta;
+        samples = history.size();
+        meanAbsoluteErrorMs = error / history.size();
+    }
+
+    static double[] features(PdbBuild build)
+    {
+        String casper = build.getCasperInput();
+        int units = Math.max(1, build.getNoRepeatingUnits());
+        int residues = count(casper, "->") + 1;
+        int branches = count(casper, "[");
+        double built = (double) residues * units;
+        return new double[] {1, built, built * built, branches * units, units, build.getCustomDihedral().isEmpty() ? 0 : 1};
+    }
+
+    private static int count(String text, String token)
+    {
+        int count = 0;
+        for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + token.length()))
+            count++;
+        return count;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting on an augmented matrix.
+     *
+     * @return the solution, or null if the system is singular
+     */
+    private static double[] solve(double[][] a)
+    {
+        int n = a.length;
+        for (int col = 0; col < n; col++)
+        {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++)
+            {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+                    pivot = row;
+            }
+            if (Math.abs(a[pivot][col]) < 1e-12)
+                return null;
+
+            double[] swap = a[col];
+            a[col] = a[pivot];
+            a[pivot] = swap;
+            for (int row = col + 1; row < n; row++)
+            {
+                double factor = a[row][col] / a[col][col];
+                for (int k = col; k <= n; k++)
+                    a[row][k] -= factor * a[col][k];
+            }
+        }
+
+        double[] x = new double[n];
+        for (int row = n - 1; row >= 0; row--)
+        {
+            double sum = a[row][n];
+            for (int k = row + 1; k < n; k++)
+                sum -= a[row][k] * x[k];
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        double[] beta = coefficients;
+        stats.put("trained", beta != null);
+        stats.put("samples", samples);
+        stats.put("meanAbsoluteErrorMs", meanAbsoluteErrorMs);
+        if (beta != null)
+        {
+            JSONArray weights = new JSONArray();
+            for (double weight : beta)
+                weights.add(weight);
+            stats.put("coefficients", weights);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,125 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.model.build.BuildStatus;
+import com.uct.carbbuilder.model.build.PdbBuild;
+
+/**
+ * Published through the application context as a build moves through the pipeline.
+ */
+public class BuildEvent
+{
+    public enum Type
+    {
+        QUEUED, RUNNING, PROGRESS, SUCCESS, FAILED, TIMEOUT, EVICTED;
+
+        /**
+         * Nothing more is published for the build, an evicted one until it is requested again.
+         */
+        public boolean isFinal()
+        {
+            return this == SUCCESS || this == FAILED || this == TIMEOUT || this == EVICTED;
+        }
+    }
+
+    private final Type type;
+    private final String buildHash;
+    private final short buildStatus;
+    private final int linkages;
+    private final boolean psfBuilt;
+    private final String failReason;
+
+    private BuildEvent(Type type, PdbBuild build, int linkages)
+    {
+        this(type, build.getBuildHash(), build.getBuildStatus(), linkages, build.isPsfBuilt(), build.getFailReason());
+    }
+
+    private BuildEvent(Type type, String buildHash, short buildStatus, int linkages, boolean psfBuilt, String failReason)
+    {
+        this.type = type;
+        this.buildHash = buildHash;
+        this.buildStatus = buildStatus;
+        this.linkages = linkages;
+        this.psfBuilt = psfBuilt;
+        this.failReason = failReason;
+    }
+
+    public static BuildEvent queued(PdbBuild build)
+    {
+        return new BuildEvent(Type.QUEUED, build, 0);
+    }
+
+    public static BuildEvent running(PdbBuild build)
+    {
+        return new BuildEvent(Type.RUNNING, build, 0);
+    }
+
+    public static BuildEvent progress(PdbBuild build, int linkages)
+    {
+        return new BuildEvent(Type.PROGRESS, build, linkages);
+    }
+
+    /**
+     * The event for a build's current state, SUCCESS, FAILED or TIMEOUT once it is finished, EVICTED once
+     * its outputs are removed and RUNNING otherwise.
+     */
+    public static BuildEvent of(PdbBuild build, int linkages)
+    {
+        if (build.isBuildSuccess())
+            return new BuildEvent(Type.SUCCESS, build, linkages);
+        if (build.isBuildFailed())
+            return new BuildEvent(Type.FAILED, build, linkages);
+        if (build.isBuildTimedOut())
+            return new BuildEvent(Type.TIMEOUT, build, linkages);
+        if (build.isBuildEvicted())
+            return new BuildEvent(Type.EVICTED, build, linkages);
+        return new BuildEvent(Type.RUNNING, build, linkages);
+    }
+
+    /**
+     * The final event of a build read by its status, for builds that ran on another node.
+     *
+     * @param buildHash the hash the build is watched by
+     * @return null while the build is in progress
+     */
+    public static BuildEvent finished(String buildHash, BuildStatus status)
+    {
+        switch (status.getBuildStatus())
+        {
+            case PdbBuild.SUCCESS: return new BuildEvent(Type.SUCCESS, buildHash, status.getBuildStatus(), 0, status.isPsfBuilt(), null);
+            case PdbBuild.FAILED: return new BuildEvent(Type.FAILED, buildHash, status.getBuildStatus(), 0, false, status.getFailReason());
+            case PdbBuild.TIMEOUT: return new BuildEvent(Type.TIMEOUT, buildHash, status.getBuildStatus(), 0, false, status.getFailReason());
+            case PdbBuild.EVICTED: return new BuildEvent(Type.EVICTED, buildHash, status.getBuildStatus(), 0, false, null);
+            default: return null;
+        }
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getBuildHash()
+    {
+        return buildHash;
+    }
+
+    public short getBuildStatus()
+    {
+        return buildStatus;
+    }
+
+    public int getLinkages()
+    {
+        return linkages;
+    }
+
+    public boolean isPsfBuilt()
+    {
+        return psfBuilt;
+    }
+
+    public String getFailReason()
+    {
+        return failReason;
+    }
+}
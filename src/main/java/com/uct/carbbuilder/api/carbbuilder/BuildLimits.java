@@ -0,0 +1,67 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Time and memory budgets for one CarbBuilder run. Run time grows with the number of repeating units,
+ * so the wall clock and CPU budgets are a base allowance plus an allowance per unit.
+ */
+@Component
+public class BuildLimits
+{
+    @Value("${twoody.app.build.timeoutbasems}")
+    private long timeoutBaseMs;
+
+    @Value("${twoody.app.build.timeoutperunitms}")
+    private long timeoutPerUnitMs;
+
+    @Value("${twoody.app.build.timeoutmaxms}")
+    private long timeoutMaxMs;
+
+    @Value("${twoody.app.build.cpubaseseconds}")
+    private long cpuBaseSeconds;
+
+    @Value("${twoody.app.build.cpuperunitseconds}")
+    private long cpuPerUnitSeconds;
+
+    @Value("${twoody.app.build.maxmemorymb}")
+    private long maxMemoryMb;
+
+    public BuildLimits()
+    {
+    }
+
+    public BuildLimits(long timeoutBaseMs, long timeoutPerUnitMs, long timeoutMaxMs, long cpuBaseSeconds, long cpuPerUnitSeconds, long maxMemoryMb)
+    {
+        this.timeoutBaseMs = timeoutBaseMs;
+        this.timeoutPerUnitMs = timeoutPerUnitMs;
+        this.timeoutMaxMs = timeoutMaxMs;
+        this.cpuBaseSeconds = cpuBaseSeconds;
+        this.cpuPerUnitSeconds = cpuPerUnitSeconds;
+        this.maxMemoryMb = maxMemoryMb;
+    }
+
+    public long getTimeoutMs(int noRepeatingUnits)
+    {
+        return Math.min(timeoutMaxMs, timeoutBaseMs + timeoutPerUnitMs * Math.max(1, noRepeatingUnits));
+    }
+
+    /**
+     * CPU time is capped at the wall clock budget times the cores a single run can keep busy, which for
+     * CarbBuilder is in practice one.
+     */
+    public long getCpuSeconds(int noRepeatingUnits)
+    {
+        long wallSeconds = (getTimeoutMs(noRepeatingUnits) + 999) / 1000;
+        return Math.min(wallSeconds, cpuBaseSeconds + cpuPerUnitSeconds * Math.max(1, noRepeatingUnits));
+    }
+
+    /**
+     * @return the address space limit in megabytes, 0 for none
+     */
+    public long getMaxMemoryMb()
+    {
+        return maxMemoryMb;
+    }
+}
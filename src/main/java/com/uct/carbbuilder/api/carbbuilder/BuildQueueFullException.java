@@ -0,0 +1,17 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+public class BuildQueueFullException extends Exception
+{
+    private final int retryAfterSeconds;
+
+    public BuildQueueFullException(int retryAfterSeconds)
+    {
+        super("Build queue is full");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+}
@@ -1,74 +1,162 @@
 package com.uct.carbbuilder.api.carbbuilder;
 
 import com.uct.carbbuilder.api.carbbuilder.payload.CarbBuilderRequest;
-import com.uct.carbbuilder.model.build.PdbBuild;
-import com.uct.carbbuilder.model.build.PdbBuildAccessService;
-import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import com.uct.carbbuilder.model.queue.BuildPriority;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping(path = "/carbbuilder")
 public class BuildRequestController
 {
+    private static final Logger logger = LoggerFactory.getLogger(BuildRequestController.class);
+
+    public static final String BUILD_ETA_HEADER = "X-Build-ETA";
+
     @Autowired
-    private PdbBuildAccessService pdbBuildAccess;
+    private BuildRequestService buildRequestService;
 
     @Autowired
-    private PdbEntryAccessService pdbEntryAccess;
+    private BuildScheduler buildScheduler;
 
-    @Value("${twoody.app.carbbuilderversion}")
-    private String carbBuilderVersion;
+    @Autowired
+    private BuildCostModel buildCostModel;
 
-    @Value("${twoody.app.carbbuilderurl}")
-    private String carbBuilderFileLocation;
-    @Value("${twoody.app.onlinux}")
-    private boolean onLinux;
+    @Value("${twoody.app.build.maxbatchsize}")
+    private int maxBatchSize;
 
-    @CrossOrigin(origins = "http://localhost:4200")
+    /**
+     * Answers with the build hash, and the estimated seconds until the build is done in the
+     * {@value #BUILD_ETA_HEADER} header.
+     */
+    @CrossOrigin(origins = "http://localhost:4200", exposedHeaders = BUILD_ETA_HEADER)
     @PostMapping("/build")
-    public ResponseEntity<?> carbBuilderRequest(@RequestBody CarbBuilderRequest request) throws NoSuchAlgorithmException
+    public ResponseEntity<?> carbBuilderRequest(@RequestBody CarbBuilderRequest request, HttpServletRequest httpRequest) throws NoSuchAlgorithmException
     {
         if(!request.isValid())
             return ResponseEntity.badRequest().body("Invalid Input");
-        return handleBuildRequest(request);
+        return handleBuildRequest(request, BuildSubmitter.of(httpRequest));
 
     }
 
-    private ResponseEntity<?> handleBuildRequest(CarbBuilderRequest request) throws NoSuchAlgorithmException
+    /**
+     * Submits up to {@code maxbatchsize} structures in one call and answers with their build hashes,
+     * in request order.
+     */
+    @CrossOrigin(origins = "http://localhost:4200")
+    @PostMapping("/build/batch")
+    public ResponseEntity<?> carbBuilderBatchRequest(@RequestBody List<CarbBuilderRequest> requests, HttpServletRequest httpRequest) throws NoSuchAlgorithmException
     {
-        String buildHash = PdbBuild.getBuildHash(request.getCasperInput(), request.getNoRepeatingUnits(), carbBuilderVersion, request.getCustomDihedral());
-        Optional<PdbBuild> optionalPdbBuild = pdbBuildAccess.findByBuildHash(buildHash);
-        PdbBuild build;
-        if(!optionalPdbBuild.isPresent())
+        if (requests.isEmpty())
+            return ResponseEntity.badRequest().body("Invalid Input");
+        if (requests.size() > maxBatchSize)
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body("A batch can hold at most " + maxBatchSize + " requests");
+        for (int i = 0; i < requests.size(); i++)
         {
-            build = pdbBuildAccess.save(new PdbBuild(request, carbBuilderVersion));
-            build.setBuildInProgress();
-
-            pdbBuildAccess.save(build);
-
-            try
-            {
-                CarbBuilderProcessManager manager = new CarbBuilderProcessManager(build, pdbBuildAccess, pdbEntryAccess, carbBuilderFileLocation, onLinux);
-                manager.start();
-            }
-            catch (Exception e)
-            {
-                System.out.println(e.toString());
-                return ResponseEntity.badRequest().body("Error occurred in the processing of this request");
-            }
+            if (requests.get(i) == null || requests.get(i).getCasperInput() == null || !requests.get(i).isValid())
+                return ResponseEntity.badRequest().body("Invalid Input at index " + i);
         }
-        else
+
+        BuildSubmitter submitter = BuildSubmitter.of(httpRequest);
+        try
+        {
+            JSONArray hashes = new JSONArray();
+            hashes.addAll(buildRequestService.submitAll(requests, submitter));
+            return ResponseEntity.accepted().body(hashes.toJSONString());
+        }
+        catch (BuildQueueFullException e)
         {
-            build = optionalPdbBuild.get();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body("Build queue is full, please try again later");
         }
+        catch (RuntimeException e)
+        {
+            // Input was validated above, so this is the server failing, e.g. a lost database connection
+            logger.error("Could not submit builds for {}", submitter.getKey(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error occurred in the processing of this request");
+        }
+    }
 
-        return ResponseEntity.accepted().body(build.getBuildHash());
+    private ResponseEntity<?> handleBuildRequest(CarbBuilderRequest request, BuildSubmitter submitter) throws NoSuchAlgorithmException
+    {
+        try
+        {
+            String buildHash = buildRequestService.submit(request, submitter);
+            long etaSeconds = (buildScheduler.estimateCompletionMs(buildHash) + 999) / 1000;
+            return ResponseEntity.accepted().header(BUILD_ETA_HEADER, String.valueOf(etaSeconds)).body(buildHash);
+        }
+        catch (BuildQueueFullException e)
+        {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body("Build queue is full, please try again later");
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Could not submit a build for {}", submitter.getKey(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error occurred in the processing of this request");
+        }
     }
 
+    @CrossOrigin(origins = "http://localhost:4200")
+    @GetMapping("/scheduler")
+    public ResponseEntity<?> schedulerStatus()
+    {
+        JSONObject responseData = new JSONObject();
+        responseData.put("workers", buildScheduler.getWorkers());
+        responseData.put("activeWorkers", buildScheduler.getActiveWorkers());
+        responseData.put("queueDepth", buildScheduler.getQueueDepth());
+        responseData.put("queueCapacity", buildScheduler.getQueueCapacity());
+        responseData.put("userQuota", buildScheduler.getUserQuota());
+        responseData.put("anonymousQuota", buildScheduler.getAnonymousQuota());
+
+        Map<BuildPriority, Long> queueDepth = buildScheduler.getQueueDepthByPriority();
+        JSONObject classes = new JSONObject();
+        for (Map.Entry<BuildPriority, QueueWaitStats> stats : buildScheduler.getWaitStats().entrySet())
+        {
+            JSONObject classData = new JSONObject();
+            classData.put("queueDepth", queueDepth.get(stats.getKey()));
+            classData.put("claimed", stats.getValue().getClaimed());
+            classData.put("meanWaitMs", stats.getValue().getMeanWaitMs());
+            classData.put("maxWaitMs", stats.getValue().getMaxWaitMs());
+            classData.put("lastWaitMs", stats.getValue().getLastWaitMs());
+            classes.put(stats.getKey().name().toLowerCase(), classData);
+        }
+        responseData.put("classes", classes);
+        responseData.put("costModel", buildCostModel.getStats());
+        return ResponseEntity.ok(responseData.toJSONString());
+    }
 
+    /**
+     * How often submissions reuse an existing build, and how many of those reuses only happened
+     * because the inputs were canonicalized before hashing.
+     */
+    @GetMapping("/requests")
+    public ResponseEntity<?> requestStats()
+    {
+        long submitted = buildRequestService.getSubmitted();
+        long reused = buildRequestService.getReused();
+        long reusedAfterCanonicalization = buildRequestService.getReusedAfterCanonicalization();
+        JSONObject responseData = new JSONObject();
+        responseData.put("submitted", submitted);
+        responseData.put("reused", reused);
+        responseData.put("reusedAfterCanonicalization", reusedAfterCanonicalization);
+        responseData.put("hitRate", submitted == 0 ? 0.0 : (double) reused / submitted);
+        responseData.put("rawHitRate", submitted == 0 ? 0.0 : (double) (reused - reusedAfterCanonicalization) / submitted);
+        return ResponseEntity.ok(responseData.toJSONString());
+    }
 }
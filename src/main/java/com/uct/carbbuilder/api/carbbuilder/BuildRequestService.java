@@ -0,0 +1,260 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.api.carbbuilder.payload.CarbBuilderRequest;
+import com.uct.carbbuilder.model.build.BuildAccessTracker;
+import com.uct.carbbuilder.model.build.BuildInputCanonicalizer;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves build requests to a build hash, starting a build on a cache miss. Concurrent requests for
+ * the same hash are coalesced so that only the first one touches the database and the rest wait for
+ * its result. Requests for a build that was evicted queue it again.
+ */
+@Service
+public class BuildRequestService
+{
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Autowired
+    private BuildScheduler buildScheduler;
+
+    @Autowired
+    private BuildAccessTracker buildAccessTracker;
+
+    @Value("${twoody.app.carbbuilderversion}")
+    private String carbBuilderVersion;
+
+    private final ConcurrentHashMap<String, CompletableFuture<PdbBuild>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    // Reuses by requests that were not already canonical, which a hash of the raw inputs would have missed
+    // unless the same raw inputs had been submitted before
+    private final AtomicLong reusedAfterCanonicalization = new AtomicLong();
+
+    public String submit(CarbBuilderRequest request, BuildSubmitter submitter) throws NoSuchAlgorithmException, BuildQueueFullException
+    {
+        String buildHash = PdbBuild.getBuildHash(request.getCasperInput(), request.getNoRepeatingUnits(), carbBuilderVersion, request.getCustomDihedral());
+        submitted.incrementAndGet();
+
+        CompletableFuture<PdbBuild> flight = new CompletableFuture<>();
+        CompletableFuture<PdbBuild> existing = inFlight.putIfAbsent(buildHash, flight);
+        if (existing != null)
+        {
+            PdbBuild build = await(existing);
+            countReuse(request);
+            return build.getBuildHash();
+        }
+
+        try
+        {
+            PdbBuild build = findOrStart(buildHash, request, submitter);
+            flight.complete(build);
+            return build.getBuildHash();
+        }
+        catch (Exception e)
+        {
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            inFlight.remove(buildHash, flight);
+        }
+    }
+
+    /**
+     * Resolves a batch of requests with one lookup query, one batched insert and one enqueue. Requests
+     * with the same inputs share a build, and the hashes are returned in request order.
+     */
+    public List<String> submitAll(List<CarbBuilderRequest> requests, BuildSubmitter submitter) throws NoSuchAlgorithmException, BuildQueueFullException
+    {
+        List<String> hashes = new ArrayList<>(requests.size());
+        Map<String, CarbBuilderRequest> unique = new LinkedHashMap<>();
+        for (CarbBuilderRequest request : requests)
+        {
+            String buildHash = PdbBuild.getBuildHash(request.getCasperInput(), request.getNoRepeatingUnits(), carbBuilderVersion, request.getCustomDihedral());
+            hashes.add(buildHash);
+            unique.putIfAbsent(buildHash, request);
+        }
+        submitted.addAndGet(requests.size());
+
+        Map<String, PdbBuild> existing = pdbBuildAccess.findByBuildHashes(unique.keySet());
+        List<PdbBuild> restored = new ArrayList<>();
+        for (PdbBuild build : existing.values())
+        {
+            buildAccessTracker.record(build.getBuildHash());
+            if (build.isBuildEvicted() && pdbBuildAccess.markRebuilding(build))
+                pdbBuildAccess.findById(build.getId()).ifPresent(restored::add);
+        }
+
+        List<PdbBuild> created = new ArrayList<>();
+        for (Map.Entry<String, CarbBuilderRequest> request : unique.entrySet())
+        {
+            if (existing.containsKey(request.getKey()))
+                continue;
+            PdbBuild build = new PdbBuild(request.getValue(), carbBuilderVersion);
+            build.setBuildInProgress();
+            created.add(build);
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < requests.size(); i++)
+        {
+            if (!seen.add(hashes.get(i)) || existing.containsKey(hashes.get(i)))
+                countReuse(requests.get(i));
+        }
+
+        if (created.isEmpty() && restored.isEmpty())
+            return hashes;
+
+        try
+        {
+            if (!created.isEmpty())
+                pdbBuildAccess.saveAll(created);
+        }
+        catch (DataIntegrityViolationException e)
+        {
+            // Another request started one of these builds in the meantime, so insert them one at a time
+            List<PdbBuild> inserted = new ArrayList<>();
+            for (PdbBuild build : created)
+            {
+                build.setId(0);
+                if (pdbBuildAccess.insertIfAbsent(build))
+                    inserted.add(build);
+            }
+            created = inserted;
+        }
+
+        List<PdbBuild> queued = new ArrayList<>(created);
+        queued.addAll(restored);
+        try
+        {
+            buildScheduler.enqueueAll(queued, submitter);
+        }
+        catch (BuildQueueFullException e)
+        {
+            pdbBuildAccess.deleteAll(created);
+            for (PdbBuild build : restored)
+                pdbBuildAccess.markEvicted(build);
+            throw e;
+        }
+        return hashes;
+    }
+
+    private PdbBuild findOrStart(String buildHash, CarbBuilderRequest request, BuildSubmitter submitter) throws NoSuchAlgorithmException, BuildQueueFullException
+    {
+        Optional<PdbBuild> optionalPdbBuild = pdbBuildAccess.findByBuildHash(buildHash);
+        if (optionalPdbBuild.isPresent())
+        {
+            countReuse(request);
+            buildAccessTracker.record(buildHash);
+            return rebuildIfEvicted(optionalPdbBuild.get(), submitter);
+        }
+
+        PdbBuild build = new PdbBuild(request, carbBuilderVersion);
+        build.setBuildInProgress();
+        if (!pdbBuildAccess.insertIfAbsent(build))
+        {
+            countReuse(request);
+            return pdbBuildAccess.findByBuildHash(buildHash).get();
+        }
+
+        try
+        {
+            buildScheduler.enqueue(build, submitter);
+        }
+        catch (BuildQueueFullException e)
+        {
+            pdbBuildAccess.delete(build);
+            throw e;
+        }
+        return build;
+    }
+
+    /**
+     * Queues an evicted build again under its existing hash. Of several concurrent requests for the
+     * build only the first queues it, the others see it in progress.
+     *
+     * @return the build as it is now, in progress if it was evicted
+     */
+    public PdbBuild rebuildIfEvicted(PdbBuild build, BuildSubmitter submitter) throws BuildQueueFullException
+    {
+        if (!build.isBuildEvicted())
+            return build;
+
+        if (!pdbBuildAccess.markRebuilding(build))
+            return pdbBuildAccess.findById(build.getId()).orElse(build);
+
+        PdbBuild restored = pdbBuildAccess.findById(build.getId()).get();
+        try
+        {
+            buildScheduler.enqueue(restored, submitter);
+        }
+        catch (BuildQueueFullException e)
+        {
+            pdbBuildAccess.markEvicted(restored);
+            throw e;
+        }
+        return restored;
+    }
+
+    private void countReuse(CarbBuilderRequest request)
+    {
+        reused.incrementAndGet();
+        if (!BuildInputCanonicalizer.casper(request.getCasperInput()).equals(request.getCasperInput())
+                || BuildInputCanonicalizer.repeatingUnits(request.getNoRepeatingUnits()) != request.getNoRepeatingUnits()
+                || !BuildInputCanonicalizer.dihedrals(request.getCustomDihedral()).equals(request.getCustomDihedral()))
+            reusedAfterCanonicalization.incrementAndGet();
+    }
+
+    public long getSubmitted()
+    {
+        return submitted.get();
+    }
+
+    public long getReused()
+    {
+        return reused.get();
+    }
+
+    public long getReusedAfterCanonicalization()
+    {
+        return reusedAfterCanonicalization.get();
+    }
+
+    private static PdbBuild await(CompletableFuture<PdbBuild> flight) throws BuildQueueFullException
+    {
+        try
+        {
+            return flight.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof BuildQueueFullException)
+                throw (BuildQueueFullException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.api.file.BuildPayloadCache;
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+import com.uct.carbbuilder.model.build.BuildAccessTracker;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps finished builds within a row and disk budget. Once either is exceeded the least recently
+ * requested builds are evicted: their entry and artifacts are removed and the build row is kept,
+ * marked {@link PdbBuild#EVICTED}, so that its hash rebuilds it the next time it is requested. Work is
+ * done in small batches of single row statements on indexed columns, so no table is locked for long,
+ * and an eviction that loses a race with another node or a new request is skipped. Artifacts put within
+ * {@code artifactgraceminutes} are kept, as a build producing the same content may not have saved its
+ * reference yet. Evicted rows that are not requested again within {@code evictedttldays} are deleted.
+ */
+@Component
+public class BuildRetentionJob
+{
+    private static final Logger logger = LoggerFactory.getLogger(BuildRetentionJob.class);
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Autowired
+    private PdbEntryAccessService pdbEntryAccess;
+
+    @Autowired
+    private ArtifactStore artifactStore;
+
+    @Autowired
+    private BuildAccessTracker buildAccessTracker;
+
+    @Autowired
+    private BuildPayloadCache buildPayloadCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${twoody.app.retention.maxbuilds}")
+    private long maxBuilds;
+
+    @Value("${twoody.app.retention.maxbytes}")
+    private long maxBytes;
+
+    @Value("${twoody.app.retention.batchsize}")
+    private int batchSize;
+
+    @Value("${twoody.app.retention.evictedttldays}")
+    private long evictedTtlDays;
+
+    @Value("${twoody.app.retention.artifactgraceminutes}")
+    private long artifactGraceMinutes;
+
+    @Scheduled(fixedDelayString = "${twoody.app.retention.intervalms}", initialDelayString = "${twoody.app.retention.intervalms}")
+    public void run()
+    {
+        // Builds requested since the last flush must not look cold
+        buildAccessTracker.flush();
+
+        long[] finished = pdbBuildAccess.countFinished();
+        long excessBuilds = finished[0] - maxBuilds;
+        long excessBytes = finished[1] - maxBytes;
+        int evicted = 0;
+        long freedBytes = 0;
+        List<PdbBuild> builds;
+        while ((excessBuilds > 0 || excessBytes > 0) && !(builds = pdbBuildAccess.findLeastRecentlyAccessed(batchSize)).isEmpty())
+        {
+            int evictedBefore = evicted;
+            for (PdbBuild build : builds)
+            {
+                if (excessBuilds <= 0 && excessBytes <= 0)
+                    break;
+                if (!evict(build))
+                    continue;
+
+                evicted++;
+                excessBuilds--;
+                excessBytes -= build.getArtifactBytes();
+                freedBytes += build.getArtifactBytes();
+            }
+            // Every build in the batch changed under us, the next batch is read on the next run
+            if (evicted == evictedBefore)
+                break;
+        }
+
+        int deleted = 0;
+        Date before = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(evictedTtlDays));
+        while (!(builds = pdbBuildAccess.findEvictedBefore(before, batchSize)).isEmpty())
+        {
+            pdbBuildAccess.deleteAll(builds);
+            deleted += builds.size();
+        }
+
+        Counter.builder("carbbuilder.retention.evicted").register(meterRegistry).increment(evicted);
+        Counter.builder("carbbuilder.retention.freed").baseUnit("bytes").register(meterRegistry).increment(freedBytes);
+        Counter.builder("carbbuilder.retention.deleted").register(meterRegistry).increment(deleted);
+        if (evicted > 0 || deleted > 0)
+            logger.info("Evicted {} builds, freeing {} bytes, and deleted {} evicted builds", evicted, freedBytes, deleted);
+    }
+
+    /**
+     * Marks the build evicted first, so that requests stop reading its artifacts, then removes its
+     * entry and the artifacts no other build refers to.
+     *
+     * @return false if the build was requested, rebuilt or evicted by another node since it was read
+     */
+    public boolean evict(PdbBuild build)
+    {
+        if (!pdbBuildAccess.markEvicted(build))
+            return false;
+
+        buildPayloadCache.invalidate(build.getBuildHash());
+        if (build.getLegacyBuildHash() != null)
+            buildPayloadCache.invalidate(build.getLegacyBuildHash());
+
+        long writtenBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(artifactGraceMinutes);
+        try
+        {
+            Optional<PdbEntry> entry = pdbEntryAccess.deleteByBuildId(build.getId());
+            if (entry.isPresent())
+            {
+                deleteUnreferenced(entry.get().getPdbDigest(), ArtifactType.PDB, writtenBefore);
+                deleteUnreferenced(entry.get().getPsfDigest(), ArtifactType.PSF, writtenBefore);
+                deleteUnreferenced(entry.get().getTextDigest(), ArtifactType.TEXT, writtenBefore);
+            }
+            if (build.getConsoleOutput() != null && !pdbBuildAccess.isLogReferenced(build.getConsoleOutput()))
+                artifactStore.delete(build.getConsoleOutput(), ArtifactType.LOG, writtenBefore);
+        }
+        catch (IOException e)
+        {
+            // The build is evicted either way, the artifact is only left behind
+            logger.warn("Could not remove the artifacts of build {}", build.getId(), e);
+        }
+        return true;
+    }
+
+    private void deleteUnreferenced(String digest, ArtifactType type, long writtenBefore) throws IOException
+    {
+        if (digest != null && !pdbEntryAccess.isReferenced(digest, type))
+            artifactStore.delete(digest, type, writtenBefore);
+    }
+}
@@ -0,0 +1,366 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import com.uct.carbbuilder.model.queue.BuildPriority;
+import com.uct.carbbuilder.model.queue.BuildQueueAccessService;
+import com.uct.carbbuilder.model.queue.BuildQueueEntry;
+import com.uct.carbbuilder.model.queue.FairShareAllocator;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs CarbBuilder processes on a fixed pool of workers fed from the persistent build queue.
+ * Builds are leased from the queue only when a worker is free, and the leases of running builds
+ * are renewed by a heartbeat so that builds lost to a restart are picked up again once their
+ * lease expires. Free workers are shared out between submitters by a {@link FairShareAllocator}, and
+ * each submitter's builds are run shortest first by the {@link BuildCostModel} estimate, with aging.
+ */
+@Component
+public class BuildScheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(BuildScheduler.class);
+
+    private static final int ORPHAN_BATCH_SIZE = 100;
+
+    @Autowired
+    private BuildQueueAccessService buildQueue;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Autowired
+    private PdbEntryAccessService pdbEntryAccess;
+
+    @Autowired
+    private ArtifactStore artifactStore;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private BuildLimits buildLimits;
+
+    @Autowired
+    private BuildCostModel buildCostModel;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${twoody.app.carbbuilderurl}")
+    private String carbBuilderFileLocation;
+
+    @Value("${twoody.app.onlinux}")
+    private boolean onLinux;
+
+    @Value("${twoody.app.build.workers}")
+    private int workers;
+
+    @Value("${twoody.app.build.queuecapacity}")
+    private int queueCapacity;
+
+    @Value("${twoody.app.build.retryafterseconds}")
+    private int retryAfterSeconds;
+
+    @Value("${twoody.app.build.leasems}")
+    private long leaseMs;
+
+    @Value("${twoody.app.build.maxattempts}")
+    private int maxAttempts;
+
+    @Value("${twoody.app.build.nodeid}")
+    private String nodeId;
+
+    @Value("${twoody.app.build.userquota}")
+    private int userQuota;
+
+    @Value("${twoody.app.build.anonymousquota}")
+    private int anonymousQuota;
+
+    @Value("${twoody.app.build.sjfweight}")
+    private double sjfWeight;
+
+    private ThreadPoolExecutor executor;
+
+    private FairShareAllocator fairShare;
+
+    private final Set<Long> running = ConcurrentHashMap.newKeySet();
+
+    private final Map<BuildPriority, QueueWaitStats> waitStats = new EnumMap<>(BuildPriority.class);
+
+    private final Map<BuildPriority, Timer> waitTimers = new EnumMap<>(BuildPriority.class);
+
+    // Read by the queue depth gauges, so that a scrape never queries the database
+    private volatile Map<BuildPriority, Long> queueDepthSnapshot = Collections.emptyMap();
+
+    public BuildScheduler()
+    {
+        for (BuildPriority priority : BuildPriority.values())
+            waitStats.put(priority, new QueueWaitStats());
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        if (nodeId == null || nodeId.trim().isEmpty())
+            nodeId = localHostName();
+        fairShare = new FairShareAllocator(userQuota, anonymousQuota);
+
+        for (BuildPriority priority : BuildPriority.values())
+        {
+            String buildClass = priority.name().toLowerCase();
+            Gauge.builder("carbbuilder.queue.depth", this, scheduler -> scheduler.queueDepthSnapshot.getOrDefault(priority, 0L))
+                    .tag("class", buildClass)
+                    .register(meterRegistry);
+            waitTimers.put(priority, Timer.builder("carbbuilder.queue.wait").tag("class", buildClass).register(meterRegistry));
+        }
+        Gauge.builder("carbbuilder.workers.active", running, Set::size).register(meterRegistry);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "carbbuilder-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Builds leased by this node before a restart can never finish, so they are released straight away
+     * instead of waiting for the lease to run out. In progress builds without a queue entry are queued.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recover()
+    {
+        int released = buildQueue.releaseLeases(nodeId);
+        int orphaned = 0;
+        List<PdbBuild> builds;
+        while (!(builds = pdbBuildAccess.findOrphanedInProgress(ORPHAN_BATCH_SIZE)).isEmpty())
+        {
+            for (PdbBuild build : builds)
+                buildQueue.enqueue(build);
+            orphaned += builds.size();
+        }
+
+        if (released > 0 || orphaned > 0)
+            logger.info("Recovered {} leased and {} orphaned builds", released, orphaned);
+
+        dispatch();
+    }
+
+    /**
+     * Queues a single build in the interactive class of its submitter.
+     */
+    public void enqueue(PdbBuild build, BuildSubmitter submitter) throws BuildQueueFullException
+    {
+        if (buildQueue.countPending() >= queueCapacity)
+            throw new BuildQueueFullException(retryAfterSeconds);
+
+        buildQueue.enqueue(entry(build, submitter, true));
+        eventPublisher.publishEvent(BuildEvent.queued(build));
+        dispatch();
+    }
+
+    /**
+     * Queues all of the builds in the batch class of their submitter or, if they do not all fit, none of them.
+     */
+    public void enqueueAll(List<PdbBuild> builds, BuildSubmitter submitter) throws BuildQueueFullException
+    {
+        if (builds.isEmpty())
+            return;
+        if (buildQueue.countPending() + builds.size() > queueCapacity)
+            throw new BuildQueueFullException(retryAfterSeconds);
+
+        List<BuildQueueEntry> entries = new ArrayList<>(builds.size());
+        for (PdbBuild build : builds)
+            entries.add(entry(build, submitter, false));
+        buildQueue.enqueueAll(entries);
+        for (PdbBuild build : builds)
+            eventPublisher.publishEvent(BuildEvent.queued(build));
+        dispatch();
+    }
+
+    private BuildQueueEntry entry(PdbBuild build, BuildSubmitter submitter, boolean interactive)
+    {
+        BuildQueueEntry entry = new BuildQueueEntry(build, submitter.getKey(), BuildPriority.of(interactive, submitter.isAuthenticated()));
+        entry.schedule(buildCostModel.estimateMs(build), sjfWeight);
+        return entry;
+    }
+
+    /**
+     * Roughly how long until a build finishes: the estimated work queued ahead of it spread over this
+     * node's workers, plus its own estimate less any time it has already run.
+     *
+     * @return the estimate in milliseconds, 0 if the build is not queued
+     */
+    public long estimateCompletionMs(String buildHash)
+    {
+        Optional<BuildQueueEntry> entry = buildQueue.findByBuildHash(buildHash);
+        if (!entry.isPresent())
+            return 0;
+
+        if (entry.get().isRunning() && entry.get().getClaimDate() != null)
+            return Math.max(0, entry.get().getEstimatedMs() - (System.currentTimeMillis() - entry.get().getClaimDate().getTime()));
+        return buildQueue.sumEstimatedAhead(entry.get()) / Math.max(1, workers) + entry.get().getEstimatedMs();
+    }
+
+    @Scheduled(fixedDelayString = "${twoody.app.build.pollms}")
+    public synchronized void dispatch()
+    {
+        if (executor.isShutdown())
+            return;
+
+        long now = System.currentTimeMillis();
+        for (BuildQueueEntry entry : buildQueue.claim(nodeId, workers - running.size(), leaseMs, fairShare))
+        {
+            // Retries waited on an earlier run as well as the queue, so only first claims are counted
+            if (entry.getAttempts() == 1 && entry.getEnqueueDate() != null)
+            {
+                long waitMs = now - entry.getEnqueueDate().getTime();
+                waitStats.get(BuildPriority.of(entry.getPriority())).record(waitMs);
+                waitTimers.get(BuildPriority.of(entry.getPriority())).record(waitMs, TimeUnit.MILLISECONDS);
+            }
+
+            Optional<PdbBuild> build = pdbBuildAccess.findById(entry.getBuildId());
+            if (!build.isPresent() || !build.get().isBuildInProgress())
+            {
+                buildQueue.complete(entry);
+            }
+            else if (entry.getAttempts() > maxAttempts)
+            {
+                build.get().setBuildFailed();
+                build.get().setFailReason("This structure could not be built");
+                pdbBuildAccess.save(build.get());
+                buildQueue.complete(entry);
+                eventPublisher.publishEvent(BuildEvent.of(build.get(), 0));
+            }
+            else
+            {
+                running.add(entry.getId());
+                executor.execute(() -> runBuild(entry, build.get()));
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${twoody.app.build.heartbeatms}")
+    public void heartbeat()
+    {
+        buildQueue.renewLeases(nodeId, running, leaseMs);
+    }
+
+    @Scheduled(fixedDelayString = "${twoody.app.build.pollms}")
+    public void refreshQueueDepth()
+    {
+        queueDepthSnapshot = buildQueue.countPendingByPriority();
+    }
+
+    private void runBuild(BuildQueueEntry entry, PdbBuild build)
+    {
+        try
+        {
+            new CarbBuilderProcessManager(build, pdbBuildAccess, pdbEntryAccess, artifactStore, eventPublisher, meterRegistry, buildLimits, carbBuilderFileLocation, onLinux).run();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not start build {}: {}", build.getBuildHash(), e.getMessage());
+        }
+        finally
+        {
+            running.remove(entry.getId());
+            // A build that did not reach a final state keeps its lease and is retried once it expires
+            if (!build.isBuildInProgress())
+                buildQueue.complete(entry);
+        }
+
+        dispatch();
+    }
+
+    public long getQueueDepth()
+    {
+        return buildQueue.countPending();
+    }
+
+    public Map<BuildPriority, Long> getQueueDepthByPriority()
+    {
+        return buildQueue.countPendingByPriority();
+    }
+
+    public Map<BuildPriority, QueueWaitStats> getWaitStats()
+    {
+        return Collections.unmodifiableMap(waitStats);
+    }
+
+    public int getUserQuota()
+    {
+        return userQuota;
+    }
+
+    public int getAnonymousQuota()
+    {
+        return anonymousQuota;
+    }
+
+    public int getActiveWorkers()
+    {
+        return running.size();
+    }
+
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    private static String localHostName()
+    {
+        try
+        {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e)
+        {
+            return "localhost";
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.config.security.user.UserDetailsImpl;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Who a build is queued for. Signed in users are told apart by their id and anonymous clients by
+ * their address, and each gets their own share of the workers. Behind the reverse proxy the address
+ * is the client's, which Tomcat's RemoteIpValve reads from X-Forwarded-For when the request comes from
+ * a trusted proxy, so anonymous clients do not all share the proxy's slot.
+ */
+public class BuildSubmitter
+{
+    private final String key;
+    private final boolean authenticated;
+
+    public BuildSubmitter(String key, boolean authenticated)
+    {
+        this.key = key;
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * The submitter of the current request, using the user set by AuthTokenFilter if there is one.
+     */
+    public static BuildSubmitter of(HttpServletRequest request)
+    {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication != null && authentication.getPrincipal() instanceof UserDetailsImpl)
+            return new BuildSubmitter("user:" + ((UserDetailsImpl) authentication.getPrincipal()).getId(), true);
+        return new BuildSubmitter("anonymous:" + request.getRemoteAddr(), false);
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public boolean isAuthenticated()
+    {
+        return authenticated;
+    }
+}
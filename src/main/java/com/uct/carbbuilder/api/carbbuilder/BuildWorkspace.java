@@ -0,0 +1,59 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Scratch directory a build runs in, {@code workspace/{id}/} under user.dir. The dihedral file
+ * CarbBuilder reads, the files it writes and its console log live here while it runs. The outputs
+ * worth keeping are then put in the ArtifactStore and the directory is removed.
+ */
+class BuildWorkspace
+{
+    private static final String ROOT = "workspace";
+
+    private final Path directory;
+
+    BuildWorkspace(long buildId) throws IOException
+    {
+        directory = Paths.get(System.getProperty("user.dir"), ROOT, String.valueOf(buildId));
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @return the -o argument, CarbBuilder appends .pdb and .psf
+     */
+    Path getOutputBase()
+    {
+        return directory.resolve("output");
+    }
+
+    Path getOutput(ArtifactType type)
+    {
+        return directory.resolve("output." + type.getExtension());
+    }
+
+    Path getDihedralFile()
+    {
+        return directory.resolve("dihedral.txt");
+    }
+
+    Path getLogFile()
+    {
+        return directory.resolve("console.log");
+    }
+
+    void delete() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -1,42 +1,88 @@
 package com.uct.carbbuilder.api.carbbuilder;
 
+import com.uct.carbbuilder.api.file.FileTextPayload;
+import com.uct.carbbuilder.model.artifact.Artifact;
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
 import com.uct.carbbuilder.model.build.PdbBuild;
 import com.uct.carbbuilder.model.build.PdbBuildAccessService;
 import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
 import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class CarbBuilderProcessManager extends Thread
+public class CarbBuilderProcessManager implements Runnable
 {
+    private static final Logger logger = LoggerFactory.getLogger(CarbBuilderProcessManager.class);
+
+    private static final String DEFAULT_FAIL_REASON = "This structure could not be built";
+    private static final int CONSOLE_TAIL_LINES = 5;
+    private static final int MAX_FAIL_REASON_LENGTH = 255;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    // timeout(1) sends TERM at the budget and KILL this many seconds later
+    private static final int KILL_GRACE_SECONDS = 5;
+    private static final int EXIT_TIMED_OUT = 124;
+    private static final int EXIT_KILLED = 128 + 9;
+    private static final int EXIT_CPU_LIMIT = 128 + 24;
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread thread = new Thread(r, "build-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private PdbEntryAccessService pdbEntryAccess;
     private PdbBuildAccessService pdbBuildAccess;
+    private ArtifactStore artifactStore;
+    private ApplicationEventPublisher eventPublisher;
+    private MeterRegistry meterRegistry;
 
     private ProcessBuilder process;
     private PdbBuild build;
+    private BuildWorkspace workspace;
+    private long timeoutMs;
+    private long cpuSeconds;
+    private long watchdogMs;
 
 
-
-    public CarbBuilderProcessManager(PdbBuild build, PdbBuildAccessService pdbBuildAccess, PdbEntryAccessService pdbEntryAccess, String carbBuilderFileLocation, boolean onLinux) throws IOException
+    public CarbBuilderProcessManager(PdbBuild build, PdbBuildAccessService pdbBuildAccess, PdbEntryAccessService pdbEntryAccess, ArtifactStore artifactStore, ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry, BuildLimits limits, String carbBuilderFileLocation, boolean onLinux) throws IOException
     {
         this.build = build;
         this.pdbBuildAccess = pdbBuildAccess;
         this.pdbEntryAccess = pdbEntryAccess;
+        this.artifactStore = artifactStore;
+        this.eventPublisher = eventPublisher;
+        this.meterRegistry = meterRegistry;
+        this.timeoutMs = limits.getTimeoutMs(build.getNoRepeatingUnits());
+        this.cpuSeconds = limits.getCpuSeconds(build.getNoRepeatingUnits());
 
+        this.workspace = new BuildWorkspace(build.getId());
         if (!build.getCustomDihedral().trim().equals(""))
-        {
-            FileWriter writer = new FileWriter(new File(System.getProperty("user.dir") + "/" + build.getDihedralFilePath()));
-            writer.write(build.getCustomDihedral());
-            writer.close();
-        }
+            Files.write(workspace.getDihedralFile(), build.getCustomDihedral().getBytes(StandardCharsets.UTF_8));
 
-        this.process = new ProcessBuilder();
-
-        String fileName =  build.getPdbFilePath().replaceAll(".pdb", "");
+        String fileName = workspace.getOutputBase().toString();
         if (onLinux)
-            process = new ProcessBuilder("mono", carbBuilderFileLocation, "-i", build.getCasperInput(), "-o",  System.getProperty("user.dir") + "/" + fileName);
+            process = new ProcessBuilder("mono", carbBuilderFileLocation, "-i", build.getCasperInput(), "-o", fileName);
         else
-            process = new ProcessBuilder( carbBuilderFileLocation, "-i", build.getCasperInput(), "-o", fileName);
+            process = new ProcessBuilder(carbBuilderFileLocation, "-i", build.getCasperInput(), "-o", fileName);
 
         if(build.getNoRepeatingUnits() > 0)
         {
@@ -47,83 +93,250 @@ public class CarbBuilderProcessManager extends Thread
         if (!build.getCustomDihedral().trim().equals(""))
         {
             process.command().add("-d");
-            process.command().add(build.getDihedralFilePath());
+            process.command().add(workspace.getDihedralFile().toString());
         }
 
         process.command().add("-PSF");
+        watchdogMs = timeoutMs;
+        if (onLinux)
+        {
+            process.command().addAll(0, limitCommand(limits.getMaxMemoryMb()));
+            watchdogMs += TimeUnit.SECONDS.toMillis(KILL_GRACE_SECONDS * 2);
+        }
+        process.redirectErrorStream(true);
+    }
+
+    /**
+     * On Linux the budgets are also enforced by the OS. timeout(1) runs CarbBuilder in its own process
+     * group and signals the whole group, so nothing it started outlives the build, and prlimit(1) caps
+     * its CPU time (SIGXCPU, then SIGKILL) and optionally its address space.
+     */
+    private List<String> limitCommand(long maxMemoryMb)
+    {
+        long timeoutSeconds = (timeoutMs + 999) / 1000;
+        List<String> command = new ArrayList<>(Arrays.asList(
+                "timeout", "--kill-after=" + KILL_GRACE_SECONDS + "s", timeoutSeconds + "s",
+                "prlimit", "--cpu=" + cpuSeconds + ":" + (cpuSeconds + KILL_GRACE_SECONDS)));
+        if (maxMemoryMb > 0)
+            command.add("--as=" + maxMemoryMb * 1024 * 1024);
+        command.add("--");
+        return command;
+    }
+
+    List<String> getCommand()
+    {
+        return process.command();
     }
 
     @Override
     public void run()
     {
         Process p = null;
+        File logFile = workspace.getLogFile().toFile();
         try
         {
+            long startTime = System.currentTimeMillis();
+            long spawnStart = System.nanoTime();
             p = process.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            timer("carbbuilder.process.spawn").record(System.nanoTime() - spawnStart, TimeUnit.NANOSECONDS);
+            // The only limit off Linux, and a backstop for timeout(1) on it
+            AtomicBoolean timedOut = new AtomicBoolean();
+            Process started = p;
+            ScheduledFuture<?> kill = watchdog.schedule(() ->
+            {
+                timedOut.set(true);
+                // A TERM rather than a KILL, so that timeout(1) on Linux passes it on to CarbBuilder and
+                // kills it after the grace period instead of leaving it running
+                started.destroy();
+            }, watchdogMs, TimeUnit.MILLISECONDS);
+            eventPublisher.publishEvent(BuildEvent.running(build));
             StringBuilder linkageBuilder = new StringBuilder();
-            StringBuilder consoleOutputBuilder = new StringBuilder();
-            String failReason = "This structure could not be built";
-            String line = null;
-            while ( (line = reader.readLine()) != null)
+            int linkages = 0;
+            long lastProgress = 0;
+            ArrayDeque<String> consoleTail = new ArrayDeque<>(CONSOLE_TAIL_LINES);
+            String failReason = DEFAULT_FAIL_REASON;
+            long parseNanos = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                 BufferedWriter log = new BufferedWriter(new FileWriter(logFile)))
             {
-                consoleOutputBuilder.append(line).append(System.getProperty("line.separator"));
-                if (line.contains("FINAL linkage"))
+                String line = null;
+                while ( (line = reader.readLine()) != null)
                 {
-                    line = line.substring(line.indexOf(':') + 1).trim();
-                    String resid1 = line.substring(line.indexOf('#') + 1, line.indexOf(' '));
-                    String res1 = line.substring(line.indexOf(' ') + 1, line.indexOf('('));
-                    String pos1 = line.substring(line.indexOf('(') + 1, line.indexOf('-'));
-                    String pos2 = line.substring(line.indexOf('>') + 1, line.indexOf(')'));
-                    String res2id2 = line.substring(line.indexOf(')') + 1, line.indexOf(':')).trim();
-                    String resid2 = res2id2.substring(res2id2.indexOf('#') + 1, res2id2.indexOf(' '));
-                    String res2 = res2id2.substring(res2id2.indexOf(' ') + 1);
-                    String phi = line.substring(line.indexOf(':') + 1, line.indexOf(','));
-                    String[] angles = line.substring(line.indexOf(',') + 1).split(",");
-                    String psi = angles[0];
-                    String other = "";
-                    for (int i = 1; i < angles.length; i++)
+                    log.write(line);
+                    log.newLine();
+                    long parseStart = System.nanoTime();
+                    if (LinkageLineParser.isLinkageLine(line))
                     {
-                        other += ',' + angles[i];
+                        if (LinkageLineParser.appendLinkage(line, linkageBuilder))
+                            linkages++;
+                        parseNanos += System.nanoTime() - parseStart;
+                        if (System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL_MS)
+                        {
+                            lastProgress = System.currentTimeMillis();
+                            eventPublisher.publishEvent(BuildEvent.progress(build, linkages));
+                        }
+                    }
+                    else if(line.contains("not yet supported") && line.indexOf('{') >= 0 && line.indexOf('}') > line.indexOf('{'))
+                    {
+                        failReason = "Unsupported Residues: " + line.substring(line.indexOf('{') + 1, line.indexOf('}'));
+                        parseNanos += System.nanoTime() - parseStart;
+                    }
+                    else
+                    {
+                        parseNanos += System.nanoTime() - parseStart;
                     }
-                    String out = resid1 + ' ' + res1 + ' ' + pos1 + ' ' + pos2 + ' ' + resid2 + ' ' + res2 + phi + ' ' + psi + ' ' + other;
-                    linkageBuilder.append(out).append(System.getProperty("line.separator"));
-                }
-                else if(line.contains("not yet supported"))
-                {
-                    failReason = "Unsupported Residues: " + line.substring(line.indexOf('{') + 1, line.indexOf('}'));
-                }
 
+                    if (!line.trim().isEmpty())
+                    {
+                        if (consoleTail.size() == CONSOLE_TAIL_LINES)
+                            consoleTail.removeFirst();
+                        consoleTail.addLast(line.trim());
+                    }
+                }
+            }
+            timer("carbbuilder.process.parse").record(parseNanos, TimeUnit.NANOSECONDS);
+            int exitCode = p.waitFor();
+            kill.cancel(false);
+            long elapsedMs = System.currentTimeMillis() - startTime;
+            build.setBuildDurationMs(elapsedMs);
+            // timeout(1) exits with 137 once its KILL goes through, but so does a build killed for memory
+            if (timedOut.get() || exitCode == EXIT_TIMED_OUT || (exitCode == EXIT_KILLED && elapsedMs >= timeoutMs))
+            {
+                build.setBuildTimedOut();
+                build.setFailReason("Build exceeded its time limit of " + (timeoutMs + 999) / 1000 + "s");
+                keepLog();
+            }
+            else if (exitCode == EXIT_CPU_LIMIT)
+            {
+                build.setBuildTimedOut();
+                build.setFailReason("Build exceeded its CPU time limit of " + cpuSeconds + "s");
+                keepLog();
+            }
+            else if (exitCode == EXIT_KILLED)
+            {
+                build.setBuildFailed();
+                failReason = "Build was killed before it finished, possibly for running out of memory";
             }
-            p.waitFor();
-            if (linkageBuilder.toString().isEmpty())
+            else if (linkageBuilder.length() == 0 || !Files.isRegularFile(workspace.getOutput(ArtifactType.PDB)))
                 build.setBuildFailed();
             else
                 build.setBuildSuccess();
 
-            if (!build.isBuildSuccess())
+            if (build.isBuildTimedOut())
+            {
+                logger.warn("Build {} {}", build.getId(), build.getFailReason());
+            }
+            else if (!build.isBuildSuccess())
             {
                 build.setBuildFailed();
-                build.setFailReason(failReason);
-                build.setConsoleOutput("/faillogs/output" + build.getId() + ".log");
-                FileWriter writer = new FileWriter(new File(System.getProperty("user.dir") + build.getConsoleOutput()));
-                writer.write(consoleOutputBuilder.toString());
-                writer.close();
+                build.setFailReason(withConsoleTail(failReason, consoleTail));
+                keepLog();
             }
             else
             {
-                PdbEntry entry = new PdbEntry(build.getId(), build.getPdbFilePath());
+                PdbEntry entry = new PdbEntry(build.getId());
                 entry.setLinkages(linkageBuilder.toString());
+                entry.setPdbDigest(artifactStore.put(workspace.getOutput(ArtifactType.PDB), ArtifactType.PDB));
+                build.setPsfBuilt(Files.exists(workspace.getOutput(ArtifactType.PSF)));
+                if (build.isPsfBuilt())
+                    entry.setPsfDigest(artifactStore.put(workspace.getOutput(ArtifactType.PSF), ArtifactType.PSF));
+                try
+                {
+                    FileTextPayload.store(artifactStore, build, entry, workspace.getOutput(ArtifactType.PDB));
+                }
+                catch (IOException e)
+                {
+                    // Rendered on first request instead
+                    logger.warn("Could not store the text of build {}", build.getId(), e);
+                }
                 pdbEntryAccess.save(entry);
-                build.setPsfBuilt(new File(entry.getPsfFilePath()).exists());
+                build.setArtifactBytes(storedBytes(entry.getPdbDigest(), ArtifactType.PDB) + storedBytes(entry.getPsfDigest(), ArtifactType.PSF)
+                        + storedBytes(entry.getTextDigest(), ArtifactType.TEXT));
             }
 
             pdbBuildAccess.save(build);
+            BuildEvent finished = BuildEvent.of(build, linkages);
+            Timer.builder("carbbuilder.process.run")
+                    .tag("outcome", finished.getType().name().toLowerCase())
+                    .tag("version", version())
+                    .register(meterRegistry)
+                    .record(build.getBuildDurationMs(), TimeUnit.MILLISECONDS);
+            eventPublisher.publishEvent(finished);
         }
         catch (IOException | InterruptedException e)
         {
-            e.printStackTrace();
+            logger.error("Build {} could not be run", build.getId(), e);
+        }
+        finally
+        {
+            try
+            {
+                workspace.delete();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not remove the workspace of build {}", build.getId(), e);
+            }
         }
+    }
 
+    private Timer timer(String name)
+    {
+        return Timer.builder(name).tag("version", version()).register(meterRegistry);
+    }
+
+    private String version()
+    {
+        return build.getCarbBuilderVersion() == null ? "unknown" : build.getCarbBuilderVersion();
+    }
+
+    /**
+     * Without a more specific reason the last lines CarbBuilder printed usually hold the error, so they
+     * are appended to the generic message, keeping the newest text within the failReason column.
+     */
+    private static String withConsoleTail(String failReason, ArrayDeque<String> consoleTail)
+    {
+        if (!failReason.equals(DEFAULT_FAIL_REASON) || consoleTail.isEmpty())
+            return failReason;
+
+        String prefix = failReason + ": ";
+        String tail = String.join(" | ", consoleTail);
+        if (prefix.length() + tail.length() > MAX_FAIL_REASON_LENGTH)
+            tail = "..." + tail.substring(tail.length() - (MAX_FAIL_REASON_LENGTH - prefix.length() - 3));
+        return prefix + tail;
+    }
+
+    /**
+     * @return the size of the artifact and its gzip copy in the store, 0 if there is no artifact
+     */
+    private long storedBytes(String digest, ArtifactType type) throws IOException
+    {
+        if (digest == null)
+            return 0;
+
+        long bytes = 0;
+        for (boolean gzip : new boolean[]{false, true})
+        {
+            Optional<Artifact> artifact = artifactStore.get(digest, type, gzip);
+            if (artifact.isPresent())
+                bytes += artifact.get().length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Keeps the console output of a build that did not succeed, for looking into why later.
+     */
+    private void keepLog()
+    {
+        try
+        {
+            build.setConsoleOutput(artifactStore.put(workspace.getLogFile(), ArtifactType.LOG));
+            build.setArtifactBytes(storedBytes(build.getConsoleOutput(), ArtifactType.LOG));
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not keep the log of build {}", build.getId(), e);
+        }
     }
 }
@@ -0,0 +1,111 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+/**
+ * Parses the "FINAL linkage" lines CarbBuilder prints once a structure is built, e.g.
+ * <pre>FINAL linkage: #2 aDMan (1->3) #1 aDMan: 71.30, -108.50</pre>
+ * into the space separated linkage records stored on a {@link com.uct.carbbuilder.model.pdbmanager.PdbEntry}.
+ * Each line is scanned once and copied straight into the caller's buffer without intermediate strings.
+ */
+public final class LinkageLineParser
+{
+    public static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final String LINKAGE_MARKER = "FINAL linkage";
+
+    private LinkageLineParser()
+    {
+    }
+
+    public static boolean isLinkageLine(String line)
+    {
+        return line.contains(LINKAGE_MARKER);
+    }
+
+    /**
+     * Appends the linkage record for {@code line} followed by a line separator.
+     *
+     * @return false, leaving {@code out} untouched, if the line is not a well formed linkage
+     */
+    public static boolean appendLinkage(String line, StringBuilder out)
+    {
+        int end = line.length();
+        int start = line.indexOf(':') + 1;
+        while (start < end && line.charAt(start) <= ' ')
+            start++;
+        while (end > start && line.charAt(end - 1) <= ' ')
+            end--;
+
+        int hash = -1, space = -1, open = -1, dash = -1, arrow = -1, close = -1, colon = -1, comma = -1;
+        for (int i = start; i < end; i++)
+        {
+            switch (line.charAt(i))
+            {
+                case '#': if (hash < 0) hash = i; break;
+                case ' ': if (space < 0) space = i; break;
+                case '(': if (open < 0) open = i; break;
+                case '-': if (dash < 0) dash = i; break;
+                case '>': if (arrow < 0) arrow = i; break;
+                case ')': if (close < 0) close = i; break;
+                case ':': if (colon < 0) colon = i; break;
+                case ',': if (comma < 0) comma = i; break;
+                default: break;
+            }
+        }
+
+        int resid1 = after(hash, start);
+        int res1 = after(space, start);
+        int pos1 = after(open, start);
+        int pos2 = after(arrow, start);
+        int res2id2 = after(close, start);
+        int phi = after(colon, start);
+        if (!isRange(resid1, space) || !isRange(res1, open) || !isRange(pos1, dash) || !isRange(pos2, close)
+                || !isRange(res2id2, colon) || !isRange(phi, comma))
+            return false;
+
+        // The second residue is "#<id> <name>" between ')' and ':'
+        int res2Start = res2id2;
+        int res2End = colon;
+        while (res2Start < res2End && line.charAt(res2Start) <= ' ')
+            res2Start++;
+        while (res2End > res2Start && line.charAt(res2End - 1) <= ' ')
+            res2End--;
+        int res2Hash = line.indexOf('#', res2Start);
+        int res2Space = line.indexOf(' ', res2Start);
+        int resid2 = res2Hash >= 0 && res2Hash < res2End ? res2Hash + 1 : res2Start;
+        if (res2Space < 0 || res2Space >= res2End || resid2 > res2Space)
+            return false;
+
+        // Angles after the first comma: psi, then any further values. Trailing empty values are dropped.
+        int angles = comma + 1;
+        int anglesEnd = end;
+        while (anglesEnd > angles && line.charAt(anglesEnd - 1) == ',')
+            anglesEnd--;
+        if (anglesEnd == angles && end > angles)
+            return false;
+        int psiEnd = line.indexOf(',', angles);
+        if (psiEnd < 0 || psiEnd > anglesEnd)
+            psiEnd = anglesEnd;
+
+        out.append(line, resid1, space).append(' ')
+                .append(line, res1, open).append(' ')
+                .append(line, pos1, dash).append(' ')
+                .append(line, pos2, close).append(' ')
+                .append(line, resid2, res2Space).append(' ')
+                .append(line, res2Space + 1, res2End)
+                .append(line, phi, comma).append(' ')
+                .append(line, angles, psiEnd).append(' ')
+                .append(line, psiEnd, anglesEnd)
+                .append(LINE_SEPARATOR);
+        return true;
+    }
+
+    private static int after(int index, int start)
+    {
+        return index < 0 ? start : index + 1;
+    }
+
+    private static boolean isRange(int from, int to)
+    {
+        return to >= 0 && from <= to;
+    }
+}
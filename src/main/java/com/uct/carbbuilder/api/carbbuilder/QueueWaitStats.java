@@ -0,0 +1,44 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time from submission to a worker picking the build up, for one scheduling class.
+ */
+public class QueueWaitStats
+{
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder totalWaitMs = new LongAdder();
+    private final LongAccumulator maxWaitMs = new LongAccumulator(Math::max, 0);
+    private volatile long lastWaitMs;
+
+    public void record(long waitMs)
+    {
+        claimed.increment();
+        totalWaitMs.add(waitMs);
+        maxWaitMs.accumulate(waitMs);
+        lastWaitMs = waitMs;
+    }
+
+    public long getClaimed()
+    {
+        return claimed.sum();
+    }
+
+    public double getMeanWaitMs()
+    {
+        long count = claimed.sum();
+        return count == 0 ? 0.0 : (double) totalWaitMs.sum() / count;
+    }
+
+    public long getMaxWaitMs()
+    {
+        return maxWaitMs.get();
+    }
+
+    public long getLastWaitMs()
+    {
+        return lastWaitMs;
+    }
+}
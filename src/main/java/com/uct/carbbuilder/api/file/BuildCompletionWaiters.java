@@ -0,0 +1,80 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.api.carbbuilder.BuildEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * Holds long-poll requests parked until their build finishes. The requests hold no servlet thread
+ * while parked, and all requests for a build are answered with one rendered response when it finishes.
+ */
+@Component
+public class BuildCompletionWaiters
+{
+    private final ConcurrentHashMap<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    public void park(String buildHash, DeferredResult<ResponseEntity<?>> result, Supplier<ResponseEntity<?>> render)
+    {
+        waiters.compute(buildHash, (hash, existing) -> {
+            Waiters parked = existing == null ? new Waiters(render) : existing;
+            parked.results.add(result);
+            return parked;
+        });
+        result.onCompletion(() -> unpark(buildHash, result));
+    }
+
+    public void unpark(String buildHash, DeferredResult<ResponseEntity<?>> result)
+    {
+        waiters.computeIfPresent(buildHash, (hash, parked) -> {
+            parked.results.remove(result);
+            return parked.results.isEmpty() ? null : parked;
+        });
+    }
+
+    /**
+     * @return the hashes of the builds parked requests are waiting on
+     */
+    public Set<String> getWatchedHashes()
+    {
+        return waiters.keySet();
+    }
+
+    public int getParkedCount()
+    {
+        return waiters.values().stream().mapToInt(parked -> parked.results.size()).sum();
+    }
+
+    @EventListener
+    public void onBuildEvent(BuildEvent event)
+    {
+        if (!event.getType().isFinal())
+            return;
+
+        Waiters parked = waiters.remove(event.getBuildHash());
+        if (parked == null)
+            return;
+
+        ResponseEntity<?> response = parked.render.get();
+        for (DeferredResult<ResponseEntity<?>> result : parked.results)
+            result.setResult(response);
+    }
+
+    private static class Waiters
+    {
+        private final Supplier<ResponseEntity<?>> render;
+        private final List<DeferredResult<ResponseEntity<?>>> results = new CopyOnWriteArrayList<>();
+
+        private Waiters(Supplier<ResponseEntity<?>> render)
+        {
+            this.render = render;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.api.carbbuilder.BuildEvent;
+import com.uct.carbbuilder.model.build.BuildStatus;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Build events are only published on the node that runs the build, and any node can lease it from the
+ * queue. Every {@code events.pollms} the builds that SSE subscribers and parked long-polls on this node
+ * are waiting on are read with one status query, and the final event of each one that has finished is
+ * published here, so that waiters learn of builds that ran elsewhere within one poll.
+ */
+@Component
+public class BuildEventPoller
+{
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Autowired
+    private BuildEventStream buildEventStream;
+
+    @Autowired
+    private BuildCompletionWaiters buildCompletionWaiters;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Scheduled(fixedDelayString = "${twoody.app.events.pollms}")
+    public void poll()
+    {
+        Set<String> watched = new HashSet<>(buildEventStream.getWatchedHashes());
+        watched.addAll(buildCompletionWaiters.getWatchedHashes());
+        if (watched.isEmpty())
+            return;
+
+        for (Map.Entry<String, BuildStatus> status : pdbBuildAccess.findStatuses(watched).entrySet())
+        {
+            // Waiters are closed by the first final event, so one raced by the local event is ignored
+            BuildEvent event = BuildEvent.finished(status.getKey(), status.getValue());
+            if (event != null)
+                eventPublisher.publishEvent(event);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.api.carbbuilder.BuildEvent;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import net.minidev.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans build events out to Server-Sent Event subscribers. Each build hash being watched has one
+ * channel holding the latest event, so the database is read once when the first subscriber arrives
+ * and every later subscriber starts from the event held in memory.
+ */
+@Component
+public class BuildEventStream
+{
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Value("${twoody.app.sse.timeoutms}")
+    private long timeoutMs;
+
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * @return empty if no build exists for the hash
+     */
+    public Optional<SseEmitter> subscribe(String buildHash)
+    {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        while (true)
+        {
+            Channel channel = channels.computeIfAbsent(buildHash, hash -> new Channel());
+            synchronized (channel)
+            {
+                if (channel.closed)
+                    continue;
+
+                if (channel.last == null)
+                {
+                    Optional<PdbBuild> build = pdbBuildAccess.findByBuildHash(buildHash);
+                    if (!build.isPresent())
+                    {
+                        close(buildHash, channel);
+                        return Optional.empty();
+                    }
+                    channel.last = BuildEvent.of(build.get(), 0);
+                }
+
+                if (!send(emitter, channel.last.getType(), toJson(channel.last)) || channel.last.getType().isFinal())
+                {
+                    emitter.complete();
+                    if (channel.emitters.isEmpty())
+                        close(buildHash, channel);
+                    return Optional.of(emitter);
+                }
+
+                channel.emitters.add(emitter);
+            }
+
+            emitter.onCompletion(() -> remove(buildHash, channel, emitter));
+            emitter.onTimeout(() -> remove(buildHash, channel, emitter));
+            return Optional.of(emitter);
+        }
+    }
+
+    @EventListener
+    public void onBuildEvent(BuildEvent event)
+    {
+        Channel channel = channels.get(event.getBuildHash());
+        if (channel == null)
+            return;
+
+        List<SseEmitter> emitters;
+        synchronized (channel)
+        {
+            channel.last = event;
+            emitters = channel.emitters;
+            if (event.getType().isFinal())
+                close(event.getBuildHash(), channel);
+        }
+
+        String data = toJson(event);
+        for (SseEmitter emitter : emitters)
+        {
+            if (!send(emitter, event.getType(), data) || event.getType().isFinal())
+                emitter.complete();
+        }
+    }
+
+    /**
+     * @return the hashes of the builds subscribers are waiting on
+     */
+    public Set<String> getWatchedHashes()
+    {
+        return channels.keySet();
+    }
+
+    public int getChannelCount()
+    {
+        return channels.size();
+    }
+
+    private void remove(String buildHash, Channel channel, SseEmitter emitter)
+    {
+        synchronized (channel)
+        {
+            channel.emitters.remove(emitter);
+            if (channel.emitters.isEmpty())
+                close(buildHash, channel);
+        }
+    }
+
+    private void close(String buildHash, Channel channel)
+    {
+        channel.closed = true;
+        channels.remove(buildHash, channel);
+    }
+
+    private static String toJson(BuildEvent event)
+    {
+        JSONObject data = new JSONObject();
+        data.put("buildStatus", event.getBuildStatus());
+        if (event.getType() == BuildEvent.Type.PROGRESS)
+            data.put("linkages", event.getLinkages());
+        else if (event.getType() == BuildEvent.Type.SUCCESS)
+            data.put("psfBuilt", event.isPsfBuilt());
+        else if (event.getType() == BuildEvent.Type.FAILED || event.getType() == BuildEvent.Type.TIMEOUT)
+            data.put("failReason", event.getFailReason());
+        return data.toJSONString();
+    }
+
+    private static boolean send(SseEmitter emitter, BuildEvent.Type type, String data)
+    {
+        try
+        {
+            emitter.send(SseEmitter.event().name(type.name().toLowerCase()).data(data));
+            return true;
+        }
+        catch (IOException | IllegalStateException e)
+        {
+            return false;
+        }
+    }
+
+    private static class Channel
+    {
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+        private BuildEvent last;
+        private boolean closed;
+    }
+}
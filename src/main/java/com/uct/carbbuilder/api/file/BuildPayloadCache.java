@@ -0,0 +1,88 @@
+package com.uct.carbbuilder.api.file;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import net.minidev.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the /file/text response bodies of finished builds, keyed by build hash. Entries leave the
+ * cache when the byte budget forces an eviction, where Caffeine's W-TinyLFU policy keeps the structures
+ * that are requested again and again, when retention on this node evicts the build, or after
+ * {@code buildttlms}, so that a build evicted by another node is served as finished for no longer than
+ * that and its next request rebuilds it.
+ */
+@Component
+public class BuildPayloadCache implements MeterBinder
+{
+    @Value("${twoody.app.cache.payloadmaxbytes}")
+    private long maxBytes;
+
+    @Value("${twoody.app.cache.buildttlms}")
+    private long ttlMs;
+
+    private Cache<String, FileTextPayload> payloads;
+
+    @PostConstruct
+    public void init()
+    {
+        payloads = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String buildHash, FileTextPayload payload) -> payload.getWeight())
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry)
+    {
+        CaffeineCacheMetrics.monitor(registry, payloads, "buildPayloads");
+    }
+
+    /**
+     * @return the cached payload, or null on a miss
+     */
+    public FileTextPayload get(String buildHash)
+    {
+        return payloads.getIfPresent(buildHash);
+    }
+
+    /**
+     * Only the payloads of finished builds may be put here, as entries are not refreshed before they
+     * expire.
+     */
+    public void put(String buildHash, FileTextPayload payload)
+    {
+        payloads.put(buildHash, payload);
+    }
+
+    public void invalidate(String buildHash)
+    {
+        payloads.invalidate(buildHash);
+    }
+
+    public JSONObject getStats()
+    {
+        CacheStats stats = payloads.stats();
+        JSONObject json = new JSONObject();
+        json.put("entries", payloads.estimatedSize());
+        json.put("bytes", payloads.policy().eviction().get().weightedSize().getAsLong());
+        json.put("maxBytes", maxBytes);
+        json.put("hits", stats.hitCount());
+        json.put("misses", stats.missCount());
+        json.put("hitRate", stats.hitRate());
+        json.put("evictions", stats.evictionCount());
+        json.put("evictedBytes", stats.evictionWeight());
+        return json;
+    }
+}
@@ -0,0 +1,171 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.model.artifact.Artifact;
+import com.uct.carbbuilder.model.artifact.FileArtifact;
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes an immutable build artifact to the response. Stored files are handed to Tomcat's sendfile
+ * when the connector supports it, so the kernel sends them straight from the page cache, anything else
+ * is copied through the servlet output stream. A single byte range can be requested to resume a
+ * download, and the strong ETag lets clients revalidate with a 304. Clients that
+ * {@link GzipArtifacts#accepts accept} gzip are sent the gzip copy of the artifact when one exists.
+ */
+public final class FileResponseWriter
+{
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    // Request attributes of Tomcat's sendfile, the end is exclusive
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private FileResponseWriter()
+    {
+    }
+
+    /**
+     * @param artifact the artifact, or null if it is not stored
+     * @param gzip its gzip copy, or null if there is none
+     * @return the number of body bytes written
+     */
+    public static long write(HttpServletRequest request, HttpServletResponse response, Artifact artifact, Artifact gzip,
+                             String fileName, String etag, String contentType) throws IOException
+    {
+        if (artifact == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found");
+            return 0;
+        }
+
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip != null && GzipArtifacts.accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING)))
+        {
+            // The compressed bytes are a different representation, so they get their own ETag
+            artifact = gzip;
+            etag = etag.substring(0, etag.length() - 1) + "-gz\"";
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (matchesEtag(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return 0;
+        }
+
+        long length = artifact.length();
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (range != null && (ifRange == null || ifRange.equals(etag)))
+        {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null)
+            {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return 0;
+            }
+            if (bounds.length == 2)
+            {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        response.setContentType(contentType);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+        response.setContentLengthLong(end - start + 1);
+        if ("HEAD".equals(request.getMethod()))
+            return 0;
+
+        if (artifact instanceof FileArtifact && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)))
+        {
+            // Tomcat sends the file once the servlet returns
+            request.setAttribute(SENDFILE_FILENAME, ((FileArtifact) artifact).getFile().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return end - start + 1;
+        }
+
+        long remaining = end - start + 1;
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        long position = start;
+        while (remaining > 0)
+        {
+            long sent = artifact.transferTo(position, remaining, out);
+            if (sent <= 0)
+                break;
+            position += sent;
+            remaining -= sent;
+        }
+        response.flushBuffer();
+        return end - start + 1 - remaining;
+    }
+
+    /**
+     * @return {start, end} for a satisfiable single range, an empty array for a header this writer
+     * ignores (e.g. several ranges), or null if the range can not be satisfied
+     */
+    static long[] parseRange(String header, long length)
+    {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0)
+            return new long[0];
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return new long[0];
+
+        try
+        {
+            long start;
+            long end;
+            if (dash == 0)
+            {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0)
+                    return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            }
+            else
+            {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+            return start > end || start >= length ? null : new long[]{start, end};
+        }
+        catch (NumberFormatException e)
+        {
+            return new long[0];
+        }
+    }
+
+    private static boolean matchesEtag(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null)
+            return false;
+
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+}
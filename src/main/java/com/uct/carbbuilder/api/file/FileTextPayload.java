@@ -0,0 +1,107 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.model.artifact.Artifact;
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import net.minidev.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * The /file/text response body for a build, kept as ready to send bytes. For a successful build the
+ * body is rendered once, when the build is saved, and kept in the {@link ArtifactStore} together with
+ * its gzip copy. Requests then send those bytes as they are instead of escaping the whole PDB into a
+ * new JSON document on every poll.
+ */
+public class FileTextPayload
+{
+    private final byte[] json;
+    private final byte[] gzip;
+
+    public FileTextPayload(byte[] json, byte[] gzip)
+    {
+        this.json = json;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Renders the payload of a build that has not succeeded, these are small and only held in memory.
+     */
+    public static FileTextPayload of(PdbBuild build)
+    {
+        return new FileTextPayload(render(build, null, null).getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * Reads the pre-rendered payload of a successful build.
+     *
+     * @return the payload, or null if it has not been stored yet
+     */
+    public static FileTextPayload read(ArtifactStore artifactStore, PdbEntry entry) throws IOException
+    {
+        if (entry.getTextDigest() == null)
+            return null;
+
+        Optional<Artifact> json = artifactStore.get(entry.getTextDigest(), ArtifactType.TEXT, false);
+        if (!json.isPresent())
+            return null;
+
+        Optional<Artifact> gzip = artifactStore.get(entry.getTextDigest(), ArtifactType.TEXT, true);
+        return new FileTextPayload(json.get().readAllBytes(), gzip.isPresent() ? gzip.get().readAllBytes() : null);
+    }
+
+    /**
+     * Renders the payload of a successful build from its PDB file, stores it and sets the text digest
+     * of {@code entry}. The caller saves the entry.
+     */
+    public static void store(ArtifactStore artifactStore, PdbBuild build, PdbEntry entry, Path pdb) throws IOException
+    {
+        store(artifactStore, build, entry, PDBFileController.fileToString(pdb.toString()));
+    }
+
+    public static void store(ArtifactStore artifactStore, PdbBuild build, PdbEntry entry, String pdb) throws IOException
+    {
+        byte[] json = render(build, entry, pdb).getBytes(StandardCharsets.UTF_8);
+        entry.setTextDigest(artifactStore.put(json, ArtifactType.TEXT));
+    }
+
+    static String render(PdbBuild build, PdbEntry entry, String pdb)
+    {
+        JSONObject responseData = new JSONObject();
+        responseData.put("buildStatus", build.getBuildStatus());
+        if (build.isBuildSuccess())
+        {
+            responseData.put("psfBuilt", build.isPsfBuilt());
+            responseData.put("pdb", pdb);
+            responseData.put("linkages", entry.getLinkages());
+        }
+        else if (build.isBuildFailed() || build.isBuildTimedOut())
+        {
+            responseData.put("failReason", build.getFailReason());
+        }
+        return responseData.toJSONString();
+    }
+
+    public byte[] getJson()
+    {
+        return json;
+    }
+
+    /**
+     * @return the gzip compressed payload, or null if there is none
+     */
+    public byte[] getGzip()
+    {
+        return gzip;
+    }
+
+    public int getWeight()
+    {
+        return json.length + (gzip == null ? 0 : gzip.length);
+    }
+}
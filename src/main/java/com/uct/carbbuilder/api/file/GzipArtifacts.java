@@ -0,0 +1,49 @@
+package com.uct.carbbuilder.api.file;
+
+/**
+ * Build outputs are stored with a gzip copy (see {@link com.uct.carbbuilder.model.artifact.ArtifactStore})
+ * so that compressed responses are produced once per build instead of once per request. This decides
+ * which clients are sent that copy.
+ */
+public final class GzipArtifacts
+{
+    private GzipArtifacts()
+    {
+    }
+
+    /**
+     * @return true if the Accept-Encoding header allows gzip, i.e. names gzip or * without q=0
+     */
+    public static boolean accepts(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+            return false;
+
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*"))
+                continue;
+
+            boolean rejected = false;
+            for (int i = 1; i < parts.length; i++)
+            {
+                String param = parts[i].trim();
+                if (param.startsWith("q="))
+                {
+                    try
+                    {
+                        rejected = Double.parseDouble(param.substring(2)) <= 0;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        rejected = true;
+                    }
+                }
+            }
+            return !rejected;
+        }
+        return false;
+    }
+}
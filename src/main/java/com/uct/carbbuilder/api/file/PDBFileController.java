@@ -1,17 +1,44 @@
 package com.uct.carbbuilder.api.file;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.uct.carbbuilder.api.carbbuilder.BuildQueueFullException;
+import com.uct.carbbuilder.api.carbbuilder.BuildRequestService;
+import com.uct.carbbuilder.api.carbbuilder.BuildRetentionJob;
+import com.uct.carbbuilder.api.carbbuilder.BuildSubmitter;
 import com.uct.carbbuilder.api.file.payload.PDBFileRequest;
+import com.uct.carbbuilder.model.artifact.Artifact;
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+import com.uct.carbbuilder.model.build.BuildAccessTracker;
+import com.uct.carbbuilder.model.build.BuildStatus;
 import com.uct.carbbuilder.model.build.PdbBuild;
 import com.uct.carbbuilder.model.build.PdbBuildAccessService;
 import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
 import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
-import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping(path = "/file")
@@ -23,103 +50,340 @@ public class PDBFileController
     @Autowired
     private PdbBuildAccessService pdbBuildAccess;
 
+    @Autowired
+    private BuildEventStream buildEventStream;
+
+    @Autowired
+    private BuildCompletionWaiters buildCompletionWaiters;
+
+    @Autowired
+    private BuildPayloadCache buildPayloadCache;
+
+    @Autowired
+    private ArtifactStore artifactStore;
+
+    @Autowired
+    private BuildAccessTracker buildAccessTracker;
+
+    @Autowired
+    private BuildRequestService buildRequestService;
+
+    @Autowired
+    private BuildRetentionJob buildRetentionJob;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${twoody.app.longpoll.maxwaitseconds}")
+    private long maxWaitSeconds;
+
+    @Value("${twoody.app.status.maxhashes}")
+    private int maxStatusHashes;
+
     @CrossOrigin(origins = "http://localhost:4200")
     @RequestMapping(value = "download/pdb/{buildHash}", method = RequestMethod.GET)
-    public void getPDBFileDownload(@PathVariable("buildHash") String buildHash, HttpServletResponse response) throws IOException
+    public void getPDBFileDownload(@PathVariable("buildHash") String buildHash, HttpServletRequest request, HttpServletResponse response) throws IOException
     {
-        String fileName = "Not Found";
-        try
+        writeBuildFile(buildHash, ArtifactType.PDB, request, response);
+    }
+
+    @CrossOrigin(origins = "http://localhost:4200")
+    @RequestMapping(value = "download/psf/{buildHash}", method = RequestMethod.GET)
+    public void getPSFFileDownload(@PathVariable("buildHash") String buildHash, HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        writeBuildFile(buildHash, ArtifactType.PSF, request, response);
+    }
+
+    /**
+     * The ETag is the content digest of the file rather than the build hash, as a rebuilt build writes
+     * a new date in its PDB header and the same hash would then name different bytes. Evicted builds are
+     * queued again, as /text does, and answered with a 202 until the rebuild has finished.
+     */
+    private void writeBuildFile(String buildHash, ArtifactType type, HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        String kind = type.getExtension();
+        Optional<PdbBuild> build = pdbBuildAccess.findByBuildHash(buildHash);
+        // Only hashes of builds that exist, so unknown hashes cannot grow the tracker
+        build.ifPresent(found -> buildAccessTracker.record(buildHash));
+        if (build.isPresent() && build.get().isBuildEvicted())
         {
-            response.setContentType("application/pdb");
-            PdbBuild build = pdbBuildAccess.findByBuildHash(buildHash).get();
-            if (build.isBuildSuccess())
+            try
             {
-                fileName = pdbEntryAccess.findByBuildId(build.getId()).get().getPdbFilePath();
-                response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-                InputStream is = new FileInputStream(new File(fileName));
-                IOUtils.copy(is, response.getOutputStream());
-                response.flushBuffer();
+                buildRequestService.rebuildIfEvicted(build.get(), BuildSubmitter.of(request));
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
             }
-            else
+            catch (BuildQueueFullException e)
             {
-                response.sendError(0, "File not found");
+                response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Build queue is full, please try again later");
             }
+            return;
+        }
+
+        Optional<PdbEntry> entry = build
+                .filter(PdbBuild::isBuildSuccess)
+                .flatMap(found -> pdbEntryAccess.findByBuildId(found.getId()));
+        if (!entry.isPresent())
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found");
+            return;
+        }
+
+        String digest = type == ArtifactType.PSF ? entry.get().getPsfDigest() : entry.get().getPdbDigest();
+        String fileName = "output" + entry.get().getPdbBuildId() + "." + kind;
+        try
+        {
+            Artifact artifact = digest == null ? null : artifactStore.get(digest, type, false).orElse(null);
+            Artifact gzip = null;
+            if (artifact != null && GzipArtifacts.accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING)))
+                gzip = artifactStore.get(digest, type, true).orElse(null);
+            long written = FileResponseWriter.write(request, response, artifact, gzip, fileName, "\"" + digest + "\"", "application/pdb");
+            countServed(kind, response.getHeader(HttpHeaders.CONTENT_ENCODING), written);
         }
         catch (IOException ex)
         {
+            // Usually the client going away mid download
             System.out.println("Error writing file to output stream. Filename was " + fileName);
-            response.sendError(-1, "Output Not found");
         }
     }
 
+    /**
+     * Finished builds are answered from {@link BuildPayloadCache}, so popular structures are served
+     * without reading the database or the PDB file. Successful builds send the body rendered when the
+     * build was saved, compressed if the client accepts gzip. Builds finished before bodies were
+     * rendered get theirs on first request. Evicted builds, and builds whose PDB has gone missing,
+     * are queued again and reported in progress.
+     */
     @CrossOrigin(origins = "http://localhost:4200")
-    @RequestMapping(value = "download/psf/{buildHash}", method = RequestMethod.GET)
-    public void getPSFFileDownload(@PathVariable("buildHash") String buildHash, HttpServletResponse response) throws IOException
+    @RequestMapping(value = "/text/{buildHash}", method = RequestMethod.GET)
+    public ResponseEntity<?> getFileText(@PathVariable("buildHash") String buildHash, @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                         HttpServletRequest request)
+    {
+        return getFileText(buildHash, acceptEncoding, BuildSubmitter.of(request));
+    }
+
+    private ResponseEntity<?> getFileText(String buildHash, String acceptEncoding, BuildSubmitter submitter)
     {
-        String fileName = "Not Found";
         try
         {
-            response.setContentType("application/pdb");
-            PdbBuild build = pdbBuildAccess.findByBuildHash(buildHash).get();
-            if (build.isBuildSuccess())
+            FileTextPayload payload = buildPayloadCache.get(buildHash);
+            if (payload == null)
             {
-                fileName = pdbEntryAccess.findByBuildId(build.getId()).get().getPdbFilePath().replace(".pdb", ".psf");
-                response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName+ "\"");
-                InputStream is = new FileInputStream(new File(fileName));
-                IOUtils.copy(is, response.getOutputStream());
-                response.flushBuffer();
+                PdbBuild build = buildRequestService.rebuildIfEvicted(pdbBuildAccess.findByBuildHash(buildHash).get(), submitter);
+                if (build.isBuildSuccess())
+                {
+                    Optional<PdbEntry> entry = pdbEntryAccess.findByBuildId(build.getId());
+                    payload = entry.isPresent() ? readFileText(build, entry.get()) : null;
+                    if (payload == null && buildRetentionJob.evict(build))
+                        build = buildRequestService.rebuildIfEvicted(pdbBuildAccess.findByBuildHash(buildHash).get(), submitter);
+                }
+                if (payload == null)
+                    payload = FileTextPayload.of(build);
+                if (build.isBuildFinished())
+                    buildPayloadCache.put(buildHash, payload);
             }
-            else
+            // Unknown hashes fail the lookup above and are not recorded
+            buildAccessTracker.record(buildHash);
+
+            ResponseEntity.BodyBuilder response = ResponseEntity.accepted()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (payload.getGzip() != null && GzipArtifacts.accepts(acceptEncoding))
             {
-                response.sendError(0, "File not found");
+                countServed("text", "gzip", payload.getGzip().length);
+                return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(payload.getGzip());
             }
+            countServed("text", null, payload.getJson().length);
+            return response.body(payload.getJson());
         }
-        catch (IOException ex)
+        catch (BuildQueueFullException e)
         {
-            System.out.println("Error writing file to output stream. Filename was " + fileName);
-            response.sendError(-1, "Output Not found");
+            return queueFull(e);
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Error could not process request!");
+            return ResponseEntity.badRequest().body("Server Error");
         }
     }
 
+    /**
+     * Status of up to {@code maxhashes} builds in one request, without their PDB text, e.g.
+     * {@code /file/status?hash=a&hash=b}. Records are returned in request order, unknown hashes as a
+     * null buildStatus. Evicted builds are reported as such and rebuilt by a request to /text. The ETag
+     * is derived from the body, so polling an unchanged batch costs a 304.
+     */
     @CrossOrigin(origins = "http://localhost:4200")
-    @RequestMapping(value = "/text/{buildHash}", method = RequestMethod.GET)
-    public ResponseEntity<?> getFileText(@PathVariable("buildHash") String buildHash, HttpServletResponse response)
+    @GetMapping("/status")
+    public ResponseEntity<?> getBuildStatuses(@RequestParam("hash") List<String> buildHashes)
     {
-        String filePath = "Not Found";
-        PdbBuild build;
-        try
+        if (buildHashes.isEmpty())
+            return ResponseEntity.badRequest().body("No build hashes given");
+        if (buildHashes.size() > maxStatusHashes)
+            return ResponseEntity.badRequest().body("At most " + maxStatusHashes + " build hashes can be given");
+
+        Map<String, BuildStatus> statuses = pdbBuildAccess.findStatuses(new LinkedHashSet<>(buildHashes));
+        JSONArray records = new JSONArray();
+        for (String buildHash : buildHashes)
         {
-            build =  pdbBuildAccess.findByBuildHash(buildHash).get();
+            BuildStatus status = statuses.get(buildHash);
+            JSONObject record = new JSONObject();
+            record.put("buildHash", buildHash);
+            record.put("buildStatus", status == null ? null : status.getBuildStatus());
+            if (status != null && status.getBuildStatus() == PdbBuild.SUCCESS)
+                record.put("psfBuilt", status.isPsfBuilt());
+            else if (status != null && (status.getBuildStatus() == PdbBuild.FAILED || status.getBuildStatus() == PdbBuild.TIMEOUT))
+                record.put("failReason", status.getFailReason());
+            records.add(record);
+        }
+
+        byte[] body = records.toJSONString().getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(DigestUtils.md5DigestAsHex(body))
+                .cacheControl(CacheControl.noCache())
+                .body(body);
+    }
+
+    @GetMapping("/cache")
+    public ResponseEntity<?> getCacheStats()
+    {
+        JSONObject responseData = new JSONObject();
+        responseData.put("payloads", buildPayloadCache.getStats());
+        responseData.put("builds", toJson(pdbBuildAccess.getFinishedBuildStats()));
+        responseData.put("unknownHashes", toJson(pdbBuildAccess.getUnknownHashStats()));
+        responseData.put("entries", toJson(pdbEntryAccess.getStats()));
+        return ResponseEntity.ok(responseData.toJSONString());
+    }
+
+    private static JSONObject toJson(CacheStats stats)
+    {
+        JSONObject json = new JSONObject();
+        json.put("hits", stats.hitCount());
+        json.put("misses", stats.missCount());
+        json.put("hitRate", stats.hitRate());
+        json.put("evictions", stats.evictionCount());
+        return json;
+    }
+
+    /**
+     * Long-poll variant of /text: while the build is in progress the request is parked, without holding
+     * a servlet thread, until the build finishes or {@code wait} seconds pass. Parked requests share one
+     * rendered response, so they are always sent uncompressed.
+     */
+    @CrossOrigin(origins = "http://localhost:4200")
+    @RequestMapping(value = "/text/{buildHash}", method = RequestMethod.GET, params = "wait")
+    public DeferredResult<ResponseEntity<?>> getFileTextWhenDone(@PathVariable("buildHash") String buildHash, @RequestParam("wait") long waitSeconds,
+                                                                 HttpServletRequest request)
+    {
+        BuildSubmitter submitter = BuildSubmitter.of(request);
+        long timeoutMs = TimeUnit.SECONDS.toMillis(Math.max(0, Math.min(waitSeconds, maxWaitSeconds)));
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(timeoutMs);
+        result.onTimeout(() -> result.setResult(getFileText(buildHash, null, submitter)));
 
-            JSONObject responseData = new JSONObject();
-            responseData.put("buildStatus", build.getBuildStatus());
-            if (build.isBuildSuccess())
+        // Parked before the status check so that a build finishing in between still wakes this request
+        buildCompletionWaiters.park(buildHash, result, () -> getFileText(buildHash, null, submitter));
+        Optional<PdbBuild> build = pdbBuildAccess.findByBuildHash(buildHash);
+        if (build.isPresent() && build.get().isBuildEvicted())
+        {
+            try
             {
-                responseData.put("psfBuilt", build.isPsfBuilt());
-                PdbEntry entry = pdbEntryAccess.findByBuildId(build.getId()).get();
-                filePath = entry.getPdbFilePath();
-                String fileOutput = fileToString(filePath);
-                responseData.put("pdb", fileOutput);
-                responseData.put("linkages", entry.getLinkages());
+                build = Optional.of(buildRequestService.rebuildIfEvicted(build.get(), submitter));
             }
-            else if(build.isBuildFailed())
+            catch (BuildQueueFullException e)
             {
-                responseData.put("failReason", build.getFailReason());
+                // Answered straight away below with the 503 from /text
             }
-            return ResponseEntity.accepted().body(responseData.toJSONString());
-
         }
-        catch (Exception ex)
+        if (timeoutMs == 0 || !build.isPresent() || !build.get().isBuildInProgress())
         {
-            System.out.println("Error could not process request!");
-            return ResponseEntity.badRequest().body("Server Error");
+            buildCompletionWaiters.unpark(buildHash, result);
+            result.setResult(getFileText(buildHash, null, submitter));
+        }
+        return result;
+    }
+
+    /**
+     * Pushes queued, running, progress and success/failed events for a build. Unknown hashes get a 404
+     * so that clients fall back to polling /file/text. Evicted builds are queued again first, as /text
+     * does, so the subscriber follows the rebuild.
+     */
+    @CrossOrigin(origins = "http://localhost:4200")
+    @GetMapping(value = "/events/{buildHash}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> getBuildEvents(@PathVariable("buildHash") String buildHash, HttpServletRequest request)
+    {
+        Optional<PdbBuild> build = pdbBuildAccess.findByBuildHash(buildHash);
+        if (build.isPresent() && build.get().isBuildEvicted())
+        {
+            try
+            {
+                buildRequestService.rebuildIfEvicted(build.get(), BuildSubmitter.of(request));
+            }
+            catch (BuildQueueFullException e)
+            {
+                return queueFull(e);
+            }
         }
+
+        return buildEventStream.subscribe(buildHash)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    private static ResponseEntity<?> queueFull(BuildQueueFullException e)
+    {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body("Build queue is full, please try again later");
+    }
+
+    /**
+     * @return the payload, or null if neither it nor the PDB to render it from is stored
+     */
+    private FileTextPayload readFileText(PdbBuild build, PdbEntry entry) throws IOException
+    {
+        FileTextPayload payload = FileTextPayload.read(artifactStore, entry);
+        if (payload != null)
+            return payload;
+
+        Optional<Artifact> pdb = artifactStore.get(entry.getPdbDigest(), ArtifactType.PDB, false);
+        if (!pdb.isPresent())
+            return null;
+        FileTextPayload.store(artifactStore, build, entry, toText(pdb.get().readAllBytes()));
+        pdbEntryAccess.save(entry);
+        return FileTextPayload.read(artifactStore, entry);
+    }
+
+    private void countServed(String endpoint, String contentEncoding, long bytes)
+    {
+        Counter.builder("carbbuilder.file.served")
+                .baseUnit("bytes")
+                .tag("endpoint", endpoint)
+                .tag("encoding", contentEncoding == null ? "identity" : contentEncoding)
+                .register(meterRegistry)
+                .increment(bytes);
     }
 
     public static String fileToString(String filePath) throws IOException
+    {
+        try (Reader reader = new FileReader(filePath))
+        {
+            return toText(reader);
+        }
+    }
+
+    /**
+     * @return the lines of {@code content} as {@link #fileToString} reads them from a file
+     */
+    public static String toText(byte[] content) throws IOException
+    {
+        return toText(new InputStreamReader(new ByteArrayInputStream(content)));
+    }
+
+    private static String toText(Reader reader) throws IOException
     {
         StringBuilder contentBuilder = new StringBuilder();
-        BufferedReader br = new BufferedReader(new FileReader(filePath));
+        BufferedReader br = new BufferedReader(reader);
         String sCurrentLine;
         while ((sCurrentLine = br.readLine()) != null)
         {
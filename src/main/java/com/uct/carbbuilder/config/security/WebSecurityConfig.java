@@ -1,5 +1,6 @@
 package com.uct.carbbuilder.config.security;
 
+import com.uct.carbbuilder.api.carbbuilder.BuildRequestController;
 import com.uct.carbbuilder.config.security.token.AuthEntryPointJwt;
 import com.uct.carbbuilder.config.security.token.AuthTokenFilter;
 import com.uct.carbbuilder.config.security.user.UserDetailsServiceImpl;
@@ -88,6 +89,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter
         configuration.setAllowedMethods(Arrays.asList("*"));
         configuration.setAllowedHeaders(Arrays.asList("*"));
         configuration.setAllowCredentials(true);
+        configuration.setExposedHeaders(Arrays.asList(BuildRequestController.BUILD_ETA_HEADER));
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
         source.registerCorsConfiguration("/**", configuration);
         return source;
@@ -1,13 +1,19 @@
 package com.uct.carbbuilder.config.security.token;
 
+import com.uct.carbbuilder.config.security.user.UserDetailsImpl;
 import com.uct.carbbuilder.config.security.user.UserDetailsServiceImpl;
+import io.jsonwebtoken.Claims;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.OrRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.util.StringUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
 
@@ -20,24 +26,43 @@ import java.io.IOException;
 
 public class AuthTokenFilter extends OncePerRequestFilter
 {
+	/**
+	 * Open to everyone and never reading the principal, so requests to these skip the token. The
+	 * build endpoints are open too but are filtered, the submitter decides their fair share.
+	 */
+	private static final RequestMatcher UNAUTHENTICATED_PATHS = new OrRequestMatcher(
+			new AntPathRequestMatcher("/carbbuilder/file/**"),
+			new AntPathRequestMatcher("/file/**"),
+			new AntPathRequestMatcher("/carbbuilder/actuator/**"));
+
 	@Autowired
 	private JwtUtils jwtUtils;
 
+	@Autowired
+	private VerifiedTokenCache verifiedTokens;
+
 	@Autowired
 	private UserDetailsServiceImpl userDetailsService;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
 	private static final Logger logger = LoggerFactory.getLogger(AuthTokenFilter.class);
 
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request)
+	{
+		return UNAUTHENTICATED_PATHS.matches(request);
+	}
+
 	@Override
 	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
 			throws ServletException, IOException {
 		try
 		{
 			String jwt = parseJwt(request);
-			if (jwt != null && jwtUtils.validateJwtToken(jwt)) {
-				String username = jwtUtils.getUserNameFromJwtToken(jwt);
-
-				UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+			UserDetailsImpl userDetails = jwt == null ? null : authenticate(jwt);
+			if (userDetails != null) {
 				UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(
 						userDetails, null, userDetails.getAuthorities());
 				authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
@@ -53,6 +78,32 @@ public class AuthTokenFilter extends OncePerRequestFilter
 		filterChain.doFilter(request, response);
 	}
 
+	/**
+	 * @return the principal of the token, from the cache if it was verified before, or null if it is
+	 * not valid
+	 */
+	private UserDetailsImpl authenticate(String jwt)
+	{
+		UserDetailsImpl userDetails = verifiedTokens.get(jwt);
+		if (userDetails != null)
+			return userDetails;
+
+		Timer.Sample sample = Timer.start(meterRegistry);
+		Claims claims = jwtUtils.parseJwtToken(jwt);
+		sample.stop(meterRegistry.timer("carbbuilder.jwt.validation", "result", claims != null ? "valid" : "invalid"));
+		if (claims == null)
+			return null;
+
+		userDetails = jwtUtils.getPrincipal(claims);
+		if (userDetails.getId() == null)
+		{
+			// Issued before tokens carried the user, these are looked up once until they expire
+			userDetails = (UserDetailsImpl) userDetailsService.loadUserByUsername(claims.getSubject());
+		}
+		verifiedTokens.put(jwt, userDetails, claims.getExpiration());
+		return userDetails;
+	}
+
 	private String parseJwt(HttpServletRequest request) {
 		String headerAuth = request.getHeader("Authorization");
 
@@ -62,4 +113,4 @@ public class AuthTokenFilter extends OncePerRequestFilter
 
 		return null;
 	}
-}
\ No newline at end of file
+}
@@ -6,44 +6,63 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Component
 public class JwtUtils
 {
 	private static final Logger logger = LoggerFactory.getLogger(JwtUtils.class);
 
+	private static final String ID_CLAIM = "id";
+	private static final String EMAIL_CLAIM = "email";
+	private static final String ROLES_CLAIM = "roles";
+
 	@Value("${twoody.app.jwtSecret}")
 	private String jwtSecret;
 
 	@Value("${twoody.app.jwtExpirationMs}")
 	private int jwtExpirationMs;
 
+	/**
+	 * The token carries the user id, email and roles as claims, so requests can be authenticated
+	 * from the token alone. Role changes take effect from the next sign in.
+	 */
 	public String generateJwtToken(Authentication authentication)
 	{
 		UserDetailsImpl userPrincipal = (UserDetailsImpl) authentication.getPrincipal();
+		List<String> roles = userPrincipal.getAuthorities().stream()
+				.map(GrantedAuthority::getAuthority)
+				.collect(Collectors.toList());
 
 		return Jwts.builder()
 				.setSubject((userPrincipal.getUsername()))
+				.claim(ID_CLAIM, userPrincipal.getId())
+				.claim(EMAIL_CLAIM, userPrincipal.getEmail())
+				.claim(ROLES_CLAIM, roles)
 				.setIssuedAt(new Date())
 				.setExpiration(new Date((new Date()).getTime() + jwtExpirationMs))
 				.signWith(SignatureAlgorithm.HS512, jwtSecret)
 				.compact();
 	}
 
-	public String getUserNameFromJwtToken(String token)
-	{
-		return Jwts.parser().setSigningKey(jwtSecret).parseClaimsJws(token).getBody().getSubject();
-	}
-
-	public boolean validateJwtToken(String authToken)
+	/**
+	 * Verifies the token and returns its claims, parsing it only once.
+	 *
+	 * @return the claims, or null if the token is not valid
+	 */
+	public Claims parseJwtToken(String authToken)
 	{
 		try
 		{
-			Jwts.parser().setSigningKey(jwtSecret).parseClaimsJws(authToken);
-			return true;
+			return Jwts.parser().setSigningKey(jwtSecret).parseClaimsJws(authToken).getBody();
 		} catch (SignatureException e) {
 			logger.error("Invalid JWT signature: {}", e.getMessage());
 		} catch (MalformedJwtException e) {
@@ -56,6 +75,23 @@ public class JwtUtils
 			logger.error("JWT claims string is empty: {}", e.getMessage());
 		}
 
-		return false;
+		return null;
+	}
+
+	/**
+	 * Builds the principal from verified claims. Tokens issued before the user was embedded have no
+	 * id, their principal has to be loaded by username instead.
+	 */
+	public UserDetailsImpl getPrincipal(Claims claims)
+	{
+		Number id = (Number) claims.get(ID_CLAIM);
+		List<GrantedAuthority> authorities = new ArrayList<>();
+		Object roles = claims.get(ROLES_CLAIM);
+		if (roles instanceof Collection)
+		{
+			for (Object role : (Collection<?>) roles)
+				authorities.add(new SimpleGrantedAuthority(String.valueOf(role)));
+		}
+		return new UserDetailsImpl(id == null ? null : id.longValue(), claims.getSubject(), (String) claims.get(EMAIL_CLAIM), null, authorities);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package com.uct.carbbuilder.config.security.token;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.uct.carbbuilder.config.security.user.UserDetailsImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Principals of tokens that have already been verified, so a client sending the same token on every
+ * request is only verified once. Entries are keyed by the SHA-256 digest of the token, so raw tokens
+ * are not kept in memory, and each expires when its token does.
+ */
+@Component
+public class VerifiedTokenCache
+{
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${twoody.app.cache.verifiedtokens}")
+	private long maxTokens;
+
+	private Cache<String, Verified> tokens;
+
+	public VerifiedTokenCache()
+	{
+	}
+
+	public VerifiedTokenCache(long maxTokens, MeterRegistry meterRegistry)
+	{
+		this.maxTokens = maxTokens;
+		this.meterRegistry = meterRegistry;
+		init();
+	}
+
+	@PostConstruct
+	public void init()
+	{
+		tokens = Caffeine.newBuilder()
+				.maximumSize(maxTokens)
+				.expireAfter(new Expiry<String, Verified>()
+				{
+					@Override
+					public long expireAfterCreate(String key, Verified value, long currentTime)
+					{
+						return TimeUnit.MILLISECONDS.toNanos(Math.max(0, value.expiresAtMs - System.currentTimeMillis()));
+					}
+
+					@Override
+					public long expireAfterUpdate(String key, Verified value, long currentTime, long currentDuration)
+					{
+						return expireAfterCreate(key, value, currentTime);
+					}
+
+					@Override
+					public long expireAfterRead(String key, Verified value, long currentTime, long currentDuration)
+					{
+						return currentDuration;
+					}
+				})
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, tokens, "verifiedTokens");
+	}
+
+	/**
+	 * @return the principal of a verified token that has not expired, or null
+	 */
+	public UserDetailsImpl get(String token)
+	{
+		Verified verified = tokens.getIfPresent(digest(token));
+		if (verified == null || verified.expiresAtMs <= System.currentTimeMillis())
+			return null;
+		return verified.principal;
+	}
+
+	public void put(String token, UserDetailsImpl principal, Date expiration)
+	{
+		if (expiration != null)
+			tokens.put(digest(token), new Verified(principal, expiration.getTime()));
+	}
+
+	private static String digest(String token)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(digest);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class Verified
+	{
+		private final UserDetailsImpl principal;
+		private final long expiresAtMs;
+
+		private Verified(UserDetailsImpl principal, long expiresAtMs)
+		{
+			this.principal = principal;
+			this.expiresAtMs = expiresAtMs;
+		}
+	}
+}
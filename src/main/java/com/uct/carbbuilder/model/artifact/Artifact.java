@@ -0,0 +1,28 @@
+package com.uct.carbbuilder.model.artifact;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The stored content of one artifact, read without holding all of it in memory.
+ */
+public interface Artifact
+{
+    long length();
+
+    /**
+     * Copies up to {@code count} bytes starting at {@code position} to {@code out}.
+     *
+     * @return the number of bytes copied
+     */
+    long transferTo(long position, long count, WritableByteChannel out) throws IOException;
+
+    default byte[] readAllBytes() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, length()));
+        transferTo(0, length(), Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+package com.uct.carbbuilder.model.artifact;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests of artifact content as 64 lowercase hex characters, the same form as build hashes.
+ */
+final class ArtifactDigests
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private ArtifactDigests()
+    {
+    }
+
+    static String of(byte[] content)
+    {
+        MessageDigest digest = sha256();
+        digest.update(content);
+        return hex(digest.digest());
+    }
+
+    static String of(Path file) throws IOException
+    {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[65536];
+        try (InputStream in = Files.newInputStream(file))
+        {
+            for (int read; (read = in.read(buffer)) >= 0; )
+                digest.update(buffer, 0, read);
+        }
+        return hex(digest.digest());
+    }
+
+    static boolean isDigest(String digest)
+    {
+        if (digest == null || digest.length() != 64)
+            return false;
+        for (int i = 0; i < digest.length(); i++)
+        {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
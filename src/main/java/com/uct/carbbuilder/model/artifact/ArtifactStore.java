@@ -0,0 +1,40 @@
+package com.uct.carbbuilder.model.artifact;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Content addressed storage for build outputs. Artifacts are stored under the SHA-256 digest of their
+ * content, so identical files are kept once however many builds produced them, and a stored artifact
+ * never changes. Which backend is used is set by {@code twoody.app.artifacts.store}.
+ */
+public interface ArtifactStore
+{
+    /**
+     * Stores the content of {@code file}, and for {@link ArtifactType#isCompressed() compressed} types
+     * a gzip copy of it. Content that is already stored is not written again, only marked as written
+     * now, so that a {@link #delete} racing with the put keeps it.
+     *
+     * @return the digest the content is stored under
+     */
+    String put(Path file, ArtifactType type) throws IOException;
+
+    String put(byte[] content, ArtifactType type) throws IOException;
+
+    /**
+     * @param gzip true for the gzip copy
+     * @return the artifact, or empty if it is not stored
+     */
+    Optional<Artifact> get(String digest, ArtifactType type, boolean gzip) throws IOException;
+
+    /**
+     * Removes the artifact and its gzip copy unless either was put after {@code writtenBefore}. Callers
+     * check that no build still refers to it, and pass a time far enough back that a build which put the
+     * artifact after that check has either saved its reference by then or put it later.
+     *
+     * @param writtenBefore epoch millis
+     * @return false if the artifact was kept because it was put since
+     */
+    boolean delete(String digest, ArtifactType type, long writtenBefore) throws IOException;
+}
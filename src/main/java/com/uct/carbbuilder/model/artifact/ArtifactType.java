@@ -0,0 +1,32 @@
+package com.uct.carbbuilder.model.artifact;
+
+/**
+ * The kinds of file a build leaves behind. Types that are downloaded or sent as a response body are
+ * also stored gzip compressed.
+ */
+public enum ArtifactType
+{
+    PDB("pdb", true),
+    PSF("psf", true),
+    TEXT("json", true),
+    LOG("log", false);
+
+    private final String extension;
+    private final boolean compressed;
+
+    ArtifactType(String extension, boolean compressed)
+    {
+        this.extension = extension;
+        this.compressed = compressed;
+    }
+
+    public String getExtension()
+    {
+        return extension;
+    }
+
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+}
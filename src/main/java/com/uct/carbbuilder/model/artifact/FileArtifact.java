@@ -0,0 +1,52 @@
+package com.uct.carbbuilder.model.artifact;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An artifact in a file. Responses can hand the {@link #getFile() file} to the servlet container to
+ * send, {@link #transferTo} copies it through the given channel.
+ */
+public class FileArtifact implements Artifact
+{
+    private final Path file;
+    private final long length;
+
+    public FileArtifact(Path file) throws IOException
+    {
+        this.file = file;
+        this.length = file.toFile().length();
+    }
+
+    public Path getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel out) throws IOException
+    {
+        long remaining = count;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            while (remaining > 0)
+            {
+                long sent = channel.transferTo(position, remaining, out);
+                if (sent <= 0)
+                    break;
+                position += sent;
+                remaining -= sent;
+            }
+        }
+        return count - remaining;
+    }
+}
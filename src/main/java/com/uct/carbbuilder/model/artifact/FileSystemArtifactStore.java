@@ -0,0 +1,157 @@
+package com.uct.carbbuilder.model.artifact;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores artifacts as files sharded by the first two bytes of their digest, e.g.
+ * {@code artifacts/ab/cd/abcd...ef.pdb} with its gzip copy beside it as {@code .pdb.gz}. No directory
+ * holds more than a few hundred entries however many builds there are. Files are written to a
+ * temporary file in their shard and renamed into place, so readers never see a partial artifact. The
+ * modification time of a file is when it was last put.
+ */
+@Component
+@ConditionalOnProperty(name = "twoody.app.artifacts.store", havingValue = "filesystem")
+public class FileSystemArtifactStore implements ArtifactStore
+{
+    @Value("${twoody.app.artifacts.root}")
+    private String rootDirectory;
+
+    private Path root;
+
+    public FileSystemArtifactStore()
+    {
+    }
+
+    public FileSystemArtifactStore(Path root)
+    {
+        this.root = root;
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        root = Paths.get(System.getProperty("user.dir")).resolve(rootDirectory);
+    }
+
+    @Override
+    public String put(Path file, ArtifactType type) throws IOException
+    {
+        String digest = ArtifactDigests.of(file);
+        store(digest, type, false, out -> Files.copy(file, out));
+        if (type.isCompressed())
+            store(digest, type, true, out -> Files.copy(file, out));
+        return digest;
+    }
+
+    @Override
+    public String put(byte[] content, ArtifactType type) throws IOException
+    {
+        String digest = ArtifactDigests.of(content);
+        store(digest, type, false, out -> out.write(content));
+        if (type.isCompressed())
+            store(digest, type, true, out -> out.write(content));
+        return digest;
+    }
+
+    @Override
+    public Optional<Artifact> get(String digest, ArtifactType type, boolean gzip) throws IOException
+    {
+        if (!ArtifactDigests.isDigest(digest))
+            return Optional.empty();
+
+        Path file = path(digest, type, gzip);
+        return Files.isRegularFile(file) ? Optional.of(new FileArtifact(file)) : Optional.empty();
+    }
+
+    @Override
+    public boolean delete(String digest, ArtifactType type, long writtenBefore) throws IOException
+    {
+        if (!ArtifactDigests.isDigest(digest))
+            return true;
+
+        boolean deleted = delete(path(digest, type, true), writtenBefore);
+        return delete(path(digest, type, false), writtenBefore) && deleted;
+    }
+
+    /**
+     * The file is moved aside before its time is read, so a put either touched it before the move and
+     * it is moved back, or finds it missing and writes it again.
+     */
+    private static boolean delete(Path file, long writtenBefore) throws IOException
+    {
+        Path aside = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".deleting");
+        try
+        {
+            Files.move(file, aside, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (NoSuchFileException e)
+        {
+            return true;
+        }
+
+        if (Files.getLastModifiedTime(aside).toMillis() > writtenBefore)
+        {
+            // A put may have written the file again meanwhile, with the same content
+            Files.move(aside, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return false;
+        }
+        Files.delete(aside);
+        return true;
+    }
+
+    Path path(String digest, ArtifactType type, boolean gzip)
+    {
+        return root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4))
+                .resolve(digest + "." + type.getExtension() + (gzip ? ".gz" : ""));
+    }
+
+    private void store(String digest, ArtifactType type, boolean gzip, ContentWriter writer) throws IOException
+    {
+        Path target = path(digest, type, gzip);
+        try
+        {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+            return;
+        }
+        catch (NoSuchFileException e)
+        {
+            // Not stored yet, or deleted since
+        }
+
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), digest, ".tmp");
+        try
+        {
+            try (OutputStream out = gzip ? new GZIPOutputStream(Files.newOutputStream(temp)) : Files.newOutputStream(temp))
+            {
+                writer.writeTo(out);
+            }
+            // The same content may have been stored meanwhile, replacing it changes nothing
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private interface ContentWriter
+    {
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
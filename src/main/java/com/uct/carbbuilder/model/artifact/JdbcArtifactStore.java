@@ -0,0 +1,226 @@
+package com.uct.carbbuilder.model.artifact;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores artifacts as BLOBs in the {@link StoredArtifact} table, for deployments where the nodes share
+ * a database but no file system. Content is written from and read into streams, so the service never
+ * holds a whole artifact. Each read holds a pooled connection while it runs, and MySQL Connector/J
+ * buffers the row unless locators are emulated, so large artifacts are better kept on a file system.
+ */
+@Component
+@ConditionalOnProperty(name = "twoody.app.artifacts.store", havingValue = "jdbc")
+public class JdbcArtifactStore implements ArtifactStore
+{
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    public JdbcArtifactStore()
+    {
+    }
+
+    public JdbcArtifactStore(JdbcTemplate jdbcTemplate)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public String put(Path file, ArtifactType type) throws IOException
+    {
+        String digest = ArtifactDigests.of(file);
+        String name = name(digest, type, false);
+        if (!touch(name))
+        {
+            try (InputStream in = Files.newInputStream(file))
+            {
+                insert(name, in, Files.size(file));
+            }
+        }
+
+        if (type.isCompressed() && !touch(name(digest, type, true)))
+        {
+            Path gzip = Files.createTempFile(digest, ".gz");
+            try
+            {
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip)))
+                {
+                    Files.copy(file, out);
+                }
+                try (InputStream in = Files.newInputStream(gzip))
+                {
+                    insert(name(digest, type, true), in, Files.size(gzip));
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists(gzip);
+            }
+        }
+        return digest;
+    }
+
+    @Override
+    public String put(byte[] content, ArtifactType type) throws IOException
+    {
+        String digest = ArtifactDigests.of(content);
+        String name = name(digest, type, false);
+        if (!touch(name))
+            insert(name, new ByteArrayInputStream(content), content.length);
+
+        if (type.isCompressed() && !touch(name(digest, type, true)))
+        {
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream(content.length / 4 + 64);
+            try (OutputStream out = new GZIPOutputStream(gzip))
+            {
+                out.write(content);
+            }
+            insert(name(digest, type, true), new ByteArrayInputStream(gzip.toByteArray()), gzip.size());
+        }
+        return digest;
+    }
+
+    @Override
+    public Optional<Artifact> get(String digest, ArtifactType type, boolean gzip)
+    {
+        if (!ArtifactDigests.isDigest(digest))
+            return Optional.empty();
+
+        String name = name(digest, type, gzip);
+        List<Long> length = jdbcTemplate.queryForList("SELECT length FROM stored_artifact WHERE name = ?", Long.class, name);
+        return length.isEmpty() ? Optional.empty() : Optional.of(new JdbcArtifact(name, length.get(0)));
+    }
+
+    /**
+     * A put that touches a row before the delete keeps it, one that touches it after finds it missing
+     * and inserts it again.
+     */
+    @Override
+    public boolean delete(String digest, ArtifactType type, long writtenBefore)
+    {
+        String name = name(digest, type, false);
+        String gzip = name(digest, type, true);
+        jdbcTemplate.update("DELETE FROM stored_artifact WHERE name IN (?, ?) AND write_date <= ?", name, gzip, new Timestamp(writtenBefore));
+        return jdbcTemplate.queryForList("SELECT 1 FROM stored_artifact WHERE name IN (?, ?)", Integer.class, name, gzip).isEmpty();
+    }
+
+    /**
+     * @return false if the row does not exist
+     */
+    private boolean touch(String name)
+    {
+        return jdbcTemplate.update("UPDATE stored_artifact SET write_date = ? WHERE name = ?", new Timestamp(System.currentTimeMillis()), name) > 0;
+    }
+
+    private void insert(String name, InputStream content, long length)
+    {
+        try
+        {
+            jdbcTemplate.update("INSERT INTO stored_artifact (name, length, content, write_date) VALUES (?, ?, ?, ?)", statement ->
+            {
+                statement.setString(1, name);
+                statement.setLong(2, length);
+                statement.setBinaryStream(3, content, length);
+                statement.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            });
+        }
+        catch (DuplicateKeyException e)
+        {
+            // Stored by another node meanwhile, the content is the same
+        }
+    }
+
+    private static String name(String digest, ArtifactType type, boolean gzip)
+    {
+        return digest + "." + type.getExtension() + (gzip ? ".gz" : "");
+    }
+
+    private class JdbcArtifact implements Artifact
+    {
+        private final String name;
+        private final long length;
+
+        private JdbcArtifact(String name, long length)
+        {
+            this.name = name;
+            this.length = length;
+        }
+
+        @Override
+        public long length()
+        {
+            return length;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel out) throws IOException
+        {
+            try
+            {
+                Long copied = jdbcTemplate.query("SELECT content FROM stored_artifact WHERE name = ?", (ResultSetExtractor<Long>) resultSet ->
+                {
+                    if (!resultSet.next())
+                        return 0L;
+                    try (InputStream in = resultSet.getBinaryStream(1))
+                    {
+                        return copy(in, position, count, out);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                }, name);
+                return copied == null ? 0 : copied;
+            }
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static long copy(InputStream in, long position, long count, WritableByteChannel out) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < position)
+        {
+            long skip = in.skip(position - skipped);
+            if (skip <= 0)
+                return 0;
+            skipped += skip;
+        }
+
+        byte[] buffer = new byte[65536];
+        long copied = 0;
+        while (copied < count)
+        {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+            if (read < 0)
+                break;
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            while (chunk.hasRemaining())
+                out.write(chunk);
+            copied += read;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,162 @@
+package com.uct.carbbuilder.model.artifact;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccess;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Moves the outputs of builds made before the {@link ArtifactStore} out of pdbfiles/ and faillogs/.
+ * Each entry's PDB, and the PSF and /file/text payload written beside it, are stored and the old
+ * files removed once the entry records their digests. Runs in batches on start up, entries requested
+ * before it reaches them are migrated when they are first read.
+ */
+@Component
+public class LegacyArtifactMigration
+{
+    private static final Logger logger = LoggerFactory.getLogger(LegacyArtifactMigration.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    @Autowired
+    private PdbEntryAccess pdbEntryAccess;
+
+    @Autowired
+    private PdbBuildAccess pdbBuildAccess;
+
+    @Autowired
+    private ArtifactStore artifactStore;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate()
+    {
+        int entries = 0;
+        long lastId = 0;
+        List<PdbEntry> batch;
+        while (!(batch = pdbEntryAccess.findWithLegacyFiles(lastId, PageRequest.of(0, BATCH_SIZE))).isEmpty())
+        {
+            for (PdbEntry entry : batch)
+            {
+                if (migrate(entry))
+                    entries++;
+            }
+            lastId = batch.get(batch.size() - 1).getId();
+        }
+
+        int logs = 0;
+        lastId = 0;
+        List<PdbBuild> builds;
+        while (!(builds = pdbBuildAccess.findWithLegacyLog(lastId, PageRequest.of(0, BATCH_SIZE))).isEmpty())
+        {
+            for (PdbBuild build : builds)
+            {
+                if (migrateLog(build))
+                    logs++;
+            }
+            lastId = builds.get(builds.size() - 1).getId();
+        }
+
+        if (entries > 0 || logs > 0)
+            logger.info("Moved the files of {} builds and {} build logs to the artifact store", entries, logs);
+    }
+
+    /**
+     * Stores the legacy files of {@code entry} and saves it with their digests. Entries whose PDB file
+     * is missing are left as they are.
+     *
+     * @return true if the entry was migrated
+     */
+    public synchronized boolean migrate(PdbEntry entry)
+    {
+        if (entry.getPdbDigest() != null || entry.getPdbFilePath() == null)
+            return false;
+
+        Path pdb = legacyPath(entry.getPdbFilePath());
+        Path psf = sibling(pdb, ArtifactType.PSF);
+        Path json = sibling(pdb, ArtifactType.TEXT);
+        try
+        {
+            if (!Files.isRegularFile(pdb))
+            {
+                logger.warn("Could not migrate build {}, {} does not exist", entry.getPdbBuildId(), pdb);
+                return false;
+            }
+
+            entry.setPdbDigest(artifactStore.put(pdb, ArtifactType.PDB));
+            if (Files.isRegularFile(psf))
+                entry.setPsfDigest(artifactStore.put(psf, ArtifactType.PSF));
+            if (Files.isRegularFile(json))
+                entry.setTextDigest(artifactStore.put(json, ArtifactType.TEXT));
+            entry.setPdbFilePath(null);
+            pdbEntryAccess.save(entry);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not migrate build {}: {}", entry.getPdbBuildId(), e.getMessage());
+            return false;
+        }
+
+        for (Path file : new Path[]{pdb, psf, json})
+        {
+            deleteLegacy(file);
+            deleteLegacy(Paths.get(file + ".gz"));
+        }
+        return true;
+    }
+
+    private boolean migrateLog(PdbBuild build)
+    {
+        Path log = legacyPath(build.getConsoleOutput());
+        try
+        {
+            build.setConsoleOutput(Files.isRegularFile(log) ? artifactStore.put(log, ArtifactType.LOG) : null);
+            pdbBuildAccess.save(build);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not migrate the log of build {}: {}", build.getId(), e.getMessage());
+            return false;
+        }
+        deleteLegacy(log);
+        return true;
+    }
+
+    /**
+     * Legacy paths were written relative to the working directory, some with a leading slash.
+     */
+    private static Path legacyPath(String path)
+    {
+        return Paths.get(System.getProperty("user.dir"), path);
+    }
+
+    private static Path sibling(Path pdb, ArtifactType type)
+    {
+        String name = pdb.getFileName().toString();
+        return pdb.resolveSibling(name.substring(0, name.length() - ".pdb".length()) + "." + type.getExtension());
+    }
+
+    private static void deleteLegacy(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not remove {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.uct.carbbuilder.model.artifact;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * A row of the {@link JdbcArtifactStore}. The entity only defines the table, content is written and
+ * read as a stream through JDBC and never loaded through JPA.
+ */
+@Entity
+@Table
+public class StoredArtifact
+{
+    /**
+     * The digest and extension, e.g. {@code abcd...ef.pdb} or {@code abcd...ef.pdb.gz}.
+     */
+    @Id
+    @Column(length = 80)
+    private String name;
+
+    private long length;
+
+    @Lob
+    @Basic(fetch = FetchType.LAZY)
+    @Column(columnDefinition = "LONGBLOB")
+    private byte[] content;
+
+    /**
+     * When the content was last put, retention keeps artifacts written recently.
+     */
+    private Date writeDate;
+
+    public StoredArtifact()
+    {
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public Date getWriteDate()
+    {
+        return writeDate;
+    }
+}
@@ -0,0 +1,57 @@
+package com.uct.carbbuilder.model.build;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which builds are requested so that the coldest can be evicted first. Requests only add the
+ * build hash to a set in memory, and the set is written every {@code accessflushms} with one update
+ * per batch of hashes, so reads never wait on a write. Access dates are as precise as the flush
+ * interval, which is plenty for ordering builds that go unrequested for days.
+ */
+@Component
+public class BuildAccessTracker
+{
+    private static final int BATCH_SIZE = 500;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    private final Set<String> accessed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Only hashes a build was found for may be recorded, the set is otherwise unbounded.
+     *
+     * @param buildHash the hex or legacy hash the build was requested by
+     */
+    public void record(String buildHash)
+    {
+        accessed.add(buildHash);
+    }
+
+    @Scheduled(fixedDelayString = "${twoody.app.retention.accessflushms}")
+    public synchronized void flush()
+    {
+        Date now = new Date();
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        Iterator<String> hashes = accessed.iterator();
+        while (hashes.hasNext())
+        {
+            batch.add(hashes.next());
+            hashes.remove();
+            if (batch.size() == BATCH_SIZE || !hashes.hasNext())
+            {
+                pdbBuildAccess.updateLastAccess(batch, now);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+    }
+}
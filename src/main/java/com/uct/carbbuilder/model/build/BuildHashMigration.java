@@ -0,0 +1,71 @@
+package com.uct.carbbuilder.model.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Gives builds created before hex build keys their key. Their old hash was stored in the column that
+ * is now {@link PdbBuild#getLegacyBuildHash()}, so links made before the change keep resolving both
+ * during and after the migration. Runs before the build scheduler recovers builds, as queue entries
+ * and build events are keyed by the new hash.
+ */
+@Component
+public class BuildHashMigration
+{
+    private static final Logger logger = LoggerFactory.getLogger(BuildHashMigration.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void migrate() throws NoSuchAlgorithmException
+    {
+        int migrated = 0;
+        int conflicts = 0;
+        long lastId = 0;
+        List<PdbBuild> builds;
+        while (!(builds = pdbBuildAccess.findWithoutHash(lastId, BATCH_SIZE)).isEmpty())
+        {
+            for (PdbBuild build : builds)
+            {
+                build.setBuildHash(PdbBuild.getBuildHash(build.getCasperInput(), build.getNoRepeatingUnits(),
+                        build.getCarbBuilderVersion(), build.getCustomDihedral()));
+            }
+            lastId = builds.get(builds.size() - 1).getId();
+
+            try
+            {
+                pdbBuildAccess.saveAll(builds);
+                migrated += builds.size();
+            }
+            catch (DataIntegrityViolationException e)
+            {
+                // A build with the same inputs was submitted under its new hash before this row was
+                // migrated. The row keeps resolving by its legacy hash and is retried on the next start.
+                for (PdbBuild build : builds)
+                {
+                    if (pdbBuildAccess.saveIfUnique(build))
+                        migrated++;
+                    else
+                        conflicts++;
+                }
+            }
+        }
+
+        if (migrated > 0 || conflicts > 0)
+            logger.info("Gave {} builds a hex build key, {} conflicted with newer builds", migrated, conflicts);
+    }
+}
@@ -0,0 +1,94 @@
+package com.uct.carbbuilder.model.build;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites build inputs into one canonical form so that equivalent requests share a build hash. The
+ * canonical form is also what is stored and handed to CarbBuilder, so a build always ran with exactly
+ * the inputs its hash was made from.
+ */
+public final class BuildInputCanonicalizer
+{
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern SHORT_LINKAGE = Pattern.compile("\\((\\d+)-(\\d+)\\)");
+    private static final Pattern NUMBER = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+
+    private BuildInputCanonicalizer()
+    {
+    }
+
+    /**
+     * CASPER has no meaningful whitespace, and (1-4) and (1→4) are written (1->4).
+     */
+    public static String casper(String casperInput)
+    {
+        if (casperInput == null)
+            return "";
+
+        String canonical = WHITESPACE.matcher(casperInput).replaceAll("").replace("→", "->");
+        return SHORT_LINKAGE.matcher(canonical).replaceAll("($1->$2)");
+    }
+
+    /**
+     * CarbBuilder is only given -r for positive counts, so every count below one builds the same.
+     */
+    public static int repeatingUnits(int noRepeatingUnits)
+    {
+        return Math.max(0, noRepeatingUnits);
+    }
+
+    /**
+     * Each dihedral line sets one linkage, written {@code aDGlc 1 2 aDGlc,2,-26 -36,-39 169}, so the
+     * lines are sorted after trimming every comma separated field, collapsing the spaces in it and
+     * writing its numbers in their shortest form (60.0 as 60). Blank lines and comment lines, those
+     * starting with // or with # not followed by a residue number, are dropped. No dihedrals is "".
+     */
+    public static String dihedrals(String customDihedral)
+    {
+        if (customDihedral == null)
+            return "";
+
+        List<String> lines = new ArrayList<>();
+        for (String line : customDihedral.split("\\r?\\n|\\r"))
+        {
+            line = line.trim();
+            if (line.isEmpty() || isComment(line))
+                continue;
+
+            StringBuilder canonical = new StringBuilder(line.length());
+            String[] fields = line.split(",", -1);
+            for (int i = 0; i < fields.length; i++)
+            {
+                if (i > 0)
+                    canonical.append(',');
+                String[] tokens = WHITESPACE.split(fields[i].trim());
+                for (int j = 0; j < tokens.length; j++)
+                {
+                    if (j > 0)
+                        canonical.append(' ');
+                    canonical.append(NUMBER.matcher(tokens[j]).matches() ? number(tokens[j]) : tokens[j]);
+                }
+            }
+            lines.add(canonical.toString());
+        }
+        Collections.sort(lines);
+        return String.join("\n", lines);
+    }
+
+    private static boolean isComment(String line)
+    {
+        if (line.startsWith("//"))
+            return true;
+        return line.startsWith("#") && (line.length() == 1 || !Character.isDigit(line.charAt(1)));
+    }
+
+    private static String number(String token)
+    {
+        BigDecimal value = new BigDecimal(token).stripTrailingZeros();
+        return value.signum() == 0 ? "0" : value.toPlainString();
+    }
+}
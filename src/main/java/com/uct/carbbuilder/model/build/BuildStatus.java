@@ -0,0 +1,45 @@
+package com.uct.carbbuilder.model.build;
+
+/**
+ * The status columns of a build, read without its inputs or console output.
+ */
+public class BuildStatus
+{
+    private final String buildHash;
+    private final short buildStatus;
+    private final boolean psfBuilt;
+    private final String failReason;
+
+    public BuildStatus(String buildHash, short buildStatus, boolean psfBuilt, String failReason)
+    {
+        this.buildHash = buildHash;
+        this.buildStatus = buildStatus;
+        this.psfBuilt = psfBuilt;
+        this.failReason = failReason;
+    }
+
+    public BuildStatus(PdbBuild build)
+    {
+        this(build.getBuildHash(), build.getBuildStatus(), build.isPsfBuilt(), build.getFailReason());
+    }
+
+    public String getBuildHash()
+    {
+        return buildHash;
+    }
+
+    public short getBuildStatus()
+    {
+        return buildStatus;
+    }
+
+    public boolean isPsfBuilt()
+    {
+        return psfBuilt;
+    }
+
+    public String getFailReason()
+    {
+        return failReason;
+    }
+}
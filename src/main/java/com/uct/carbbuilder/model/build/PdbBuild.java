@@ -3,38 +3,58 @@ package com.uct.carbbuilder.model.build;
 import com.uct.carbbuilder.api.carbbuilder.payload.CarbBuilderRequest;
 
 import javax.persistence.*;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 @Entity
-@Table
+@Table(indexes = {
+        @Index(name = "idx_pdb_build_status", columnList = "buildStatus"),
+        @Index(name = "idx_pdb_build_legacy_hash", columnList = "build_hash"),
+        @Index(name = "idx_pdb_build_last_access", columnList = "lastAccessDate")
+})
 public class PdbBuild
 {
     public static final short IN_PROGRESS = 0;
     public static final short SUCCESS = 1;
     public static final short FAILED = 2;
+    public static final short TIMEOUT = 3;
+    public static final short EVICTED = 4;
 
-    private static final String OUTPUT_FOLDER = "pdbfiles/";
-    private static final String DIHEDRAL_FOLDER = "dihedrals/";
-    private static final String CONSOLE_LOG_FOLDER = "faillogs/";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    public static final int HASH_LENGTH = 64;
 
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO)
     private long id;
 
-    @Column(unique = true)
+    /**
+     * Lowercase hex SHA-256 of the build inputs, kept in a fixed width column.
+     */
+    @Column(name = "build_key", unique = true, length = HASH_LENGTH, columnDefinition = "char(64)")
     private String buildHash;
 
+    /**
+     * The hash builds were looked up by before hex keys, kept so that old links still resolve. It is
+     * only set on builds created before the change, by {@link BuildHashMigration}.
+     */
+    @Column(name = "build_hash")
+    private String legacyBuildHash;
+
     @Column(columnDefinition="TEXT")
     private String casperInput;
     private int noRepeatingUnits;
 
     private String carbBuilderVersion;
 
+    /**
+     * Digest of the console log of a build that did not succeed, in the
+     * {@link com.uct.carbbuilder.model.artifact.ArtifactStore}. Builds from before the store hold the
+     * path of the log file until they are migrated.
+     */
     @Column(columnDefinition="TEXT")
     private String consoleOutput;
-    private String dihedralFilePath;
     private short buildStatus;
 
     @Column(columnDefinition="TEXT")
@@ -46,28 +66,47 @@ public class PdbBuild
 
     private Date createDate;
 
+    /**
+     * When the build was last requested, recorded in batches by BuildAccessTracker. The coldest
+     * finished builds are evicted first, null sorts before every date.
+     */
+    private Date lastAccessDate;
+
+    /**
+     * Bytes the artifacts of the build take up in the ArtifactStore, gzip copies included. Content
+     * shared with other builds is counted for each of them. Null for builds from before this was kept.
+     */
+    private Long artifactBytes;
+
+    /**
+     * How long CarbBuilder ran for, null for builds that have not run since durations were recorded.
+     */
+    private Long buildDurationMs;
+
     public PdbBuild()
     {
     }
 
     public PdbBuild(CarbBuilderRequest request, String carbBuilderVersion) throws NoSuchAlgorithmException
     {
-        this.casperInput = request.getCasperInput();
-        this.noRepeatingUnits = request.getNoRepeatingUnits();
-        this.customDihedral = request.getCustomDihedral();
+        this.casperInput = BuildInputCanonicalizer.casper(request.getCasperInput());
+        this.noRepeatingUnits = BuildInputCanonicalizer.repeatingUnits(request.getNoRepeatingUnits());
+        this.customDihedral = BuildInputCanonicalizer.dihedrals(request.getCustomDihedral());
         this.carbBuilderVersion = carbBuilderVersion;
         this.buildHash = getBuildHash(casperInput, noRepeatingUnits, carbBuilderVersion, customDihedral);
         this.createDate = new Date();
+        this.lastAccessDate = createDate;
     }
 
     public PdbBuild(String casperInput, int noRepeatingUnits, String carbBuilderVersion, String customDihedral) throws NoSuchAlgorithmException
     {
         this.buildHash = getBuildHash(casperInput, noRepeatingUnits, carbBuilderVersion, customDihedral);
-        this.casperInput = casperInput;
-        this.noRepeatingUnits = noRepeatingUnits;
+        this.casperInput = BuildInputCanonicalizer.casper(casperInput);
+        this.noRepeatingUnits = BuildInputCanonicalizer.repeatingUnits(noRepeatingUnits);
         this.carbBuilderVersion = carbBuilderVersion;
         this.createDate = new Date();
-        this.customDihedral = customDihedral;
+        this.lastAccessDate = createDate;
+        this.customDihedral = BuildInputCanonicalizer.dihedrals(customDihedral);
     }
 
 
@@ -94,27 +133,57 @@ public class PdbBuild
         this.casperInput = casperInput;
     }
 
+    /**
+     * Hashes the {@link BuildInputCanonicalizer canonical} form of the inputs, so equivalent requests
+     * share a hash.
+     */
     public static String getBuildHash(String casperInput, int noRepeatingUnits, String carbBuilderVersion, String customDihedral) throws NoSuchAlgorithmException
     {
         MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-        String input = casperInput +  " " + noRepeatingUnits + " " + carbBuilderVersion + " " + customDihedral;
-        byte[] output = messageDigest.digest(input.getBytes());
-        return escapeHash(output);
+        String input = BuildInputCanonicalizer.casper(casperInput) + " " + BuildInputCanonicalizer.repeatingUnits(noRepeatingUnits)
+                + " " + carbBuilderVersion + " " + BuildInputCanonicalizer.dihedrals(customDihedral);
+        byte[] output = messageDigest.digest(input.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[output.length * 2];
+        for (int i = 0; i < output.length; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(output[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[output[i] & 0xf];
+        }
+        return new String(hex);
     }
 
-    private static String escapeHash(byte[] bytes)
+    /**
+     * The variable length hash used before hex keys. Bytes are folded with Math.abs, so distinct
+     * digests can share a legacy hash; it is only used to resolve links made before the change.
+     */
+    public static String getLegacyBuildHash(String casperInput, int noRepeatingUnits, String carbBuilderVersion, String customDihedral) throws NoSuchAlgorithmException
     {
-        String out = "";
-        for(byte by: bytes)
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        String input = casperInput +  " " + noRepeatingUnits + " " + carbBuilderVersion + " " + customDihedral;
+        byte[] output = messageDigest.digest(input.getBytes());
+        StringBuilder out = new StringBuilder(96);
+        for(byte by: output)
         {
             int b = Math.abs(by);
             if(b < 48 || (b > 57 && b < 65) || (b > 90 && b < 97) || b > 122)
-                out += (int) b;
+                out.append(b);
             else
-                out += (char)b;
+                out.append((char) b);
+        }
+        return out.toString();
+    }
 
+    public static boolean isHexHash(String hash)
+    {
+        if (hash == null || hash.length() != HASH_LENGTH)
+            return false;
+        for (int i = 0; i < hash.length(); i++)
+        {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
         }
-        return out;
+        return true;
     }
 
     public int getNoRepeatingUnits()
@@ -152,6 +221,16 @@ public class PdbBuild
         this.createDate = createDate;
     }
 
+    public Long getBuildDurationMs()
+    {
+        return buildDurationMs;
+    }
+
+    public void setBuildDurationMs(Long buildDurationMs)
+    {
+        this.buildDurationMs = buildDurationMs;
+    }
+
     public String getBuildHash()
     {
         return buildHash;
@@ -162,13 +241,18 @@ public class PdbBuild
         this.buildHash = casperHash;
     }
 
-    public String getConsoleOutput()
+    public String getLegacyBuildHash()
     {
-        if (consoleOutput == null || consoleOutput.equals(""))
-        {
-            consoleOutput = CONSOLE_LOG_FOLDER + "console" + id + ".log";
-        }
+        return legacyBuildHash;
+    }
+
+    public void setLegacyBuildHash(String legacyBuildHash)
+    {
+        this.legacyBuildHash = legacyBuildHash;
+    }
 
+    public String getConsoleOutput()
+    {
         return consoleOutput;
     }
 
@@ -207,6 +291,35 @@ public class PdbBuild
         this.buildStatus = FAILED;
     }
 
+    public boolean isBuildTimedOut()
+    {
+        return buildStatus == TIMEOUT;
+    }
+
+    public void setBuildTimedOut()
+    {
+        this.buildStatus = TIMEOUT;
+    }
+
+    /**
+     * Its outputs were removed to stay within the retention budget. The inputs are kept, so the build
+     * runs again the next time it is requested.
+     */
+    public boolean isBuildEvicted()
+    {
+        return buildStatus == EVICTED;
+    }
+
+    public void setBuildEvicted()
+    {
+        this.buildStatus = EVICTED;
+    }
+
+    public boolean isBuildFinished()
+    {
+        return isBuildSuccess() || isBuildFailed() || isBuildTimedOut();
+    }
+
     public String getCustomDihedral()
     {
         if(customDihedral == null)
@@ -224,11 +337,6 @@ public class PdbBuild
         return buildStatus;
     }
 
-    public void setDihedralFilePath(String dihedralFilePath)
-    {
-        this.dihedralFilePath = dihedralFilePath;
-    }
-
     public String getFailReason()
     {
         return failReason;
@@ -239,28 +347,33 @@ public class PdbBuild
         this.failReason = failReason;
     }
 
-    public String getDihedralFilePath()
+    public boolean isPsfBuilt()
     {
-        if (dihedralFilePath == null || dihedralFilePath.equals(""))
-        {
-            dihedralFilePath = DIHEDRAL_FOLDER + "dihedral" + id + ".txt";
-        }
+        return psfBuilt;
+    }
+
+    public void setPsfBuilt(boolean psfBuilt)
+    {
+        this.psfBuilt = psfBuilt;
+    }
 
-        return dihedralFilePath;
+    public Date getLastAccessDate()
+    {
+        return lastAccessDate;
     }
 
-    public String getPdbFilePath()
+    public void setLastAccessDate(Date lastAccessDate)
     {
-        return OUTPUT_FOLDER + "output" + id + ".pdb";
+        this.lastAccessDate = lastAccessDate;
     }
 
-    public boolean isPsfBuilt()
+    public long getArtifactBytes()
     {
-        return psfBuilt;
+        return artifactBytes == null ? 0 : artifactBytes;
     }
 
-    public void setPsfBuilt(boolean psfBuilt)
+    public void setArtifactBytes(long artifactBytes)
     {
-        this.psfBuilt = psfBuilt;
+        this.artifactBytes = artifactBytes;
     }
 }
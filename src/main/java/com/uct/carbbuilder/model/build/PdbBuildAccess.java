@@ -1,10 +1,15 @@
 package com.uct.carbbuilder.model.build;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -15,4 +20,50 @@ public interface PdbBuildAccess extends JpaRepository<PdbBuild, Long>
 
     @Query("SELECT e FROM PdbBuild e WHERE e.buildHash = :buildHash")
     Optional<PdbBuild> findByHash(@Param("buildHash") String buildHash);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.buildHash IN :buildHashes")
+    List<PdbBuild> findByHashIn(@Param("buildHashes") Collection<String> buildHashes);
+
+    @Query("SELECT new com.uct.carbbuilder.model.build.BuildStatus(e.buildHash, e.buildStatus, e.psfBuilt, e.failReason) FROM PdbBuild e WHERE e.buildHash IN :buildHashes")
+    List<BuildStatus> findStatusByHashIn(@Param("buildHashes") Collection<String> buildHashes);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.legacyBuildHash = :legacyBuildHash")
+    Optional<PdbBuild> findByLegacyHash(@Param("legacyBuildHash") String legacyBuildHash);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.buildHash IS NULL AND e.id > :afterId ORDER BY e.id")
+    List<PdbBuild> findWithoutHash(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.consoleOutput LIKE '%/%' AND e.id > :afterId ORDER BY e.id")
+    List<PdbBuild> findWithLegacyLog(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.buildStatus = :status AND e.buildDurationMs IS NOT NULL ORDER BY e.id DESC")
+    List<PdbBuild> findMeasuredByStatus(@Param("status") short status, Pageable pageable);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.buildStatus = :status AND NOT EXISTS (SELECT q FROM BuildQueueEntry q WHERE q.buildId = e.id) ORDER BY e.id")
+    List<PdbBuild> findUnqueuedByStatus(@Param("status") short status, Pageable pageable);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.buildStatus IN :statuses ORDER BY e.lastAccessDate, e.id")
+    List<PdbBuild> findLeastRecentlyAccessed(@Param("statuses") Collection<Short> statuses, Pageable pageable);
+
+    @Query("SELECT e FROM PdbBuild e WHERE e.buildStatus = :status AND e.lastAccessDate < :before ORDER BY e.lastAccessDate, e.id")
+    List<PdbBuild> findByStatusAccessedBefore(@Param("status") short status, @Param("before") Date before, Pageable pageable);
+
+    @Query("SELECT COUNT(e), COALESCE(SUM(e.artifactBytes), 0) FROM PdbBuild e WHERE e.buildStatus IN :statuses")
+    List<Object[]> countWithArtifactBytes(@Param("statuses") Collection<Short> statuses);
+
+    @Query("SELECT COUNT(e) FROM PdbBuild e WHERE e.buildStatus IN :statuses AND e.consoleOutput = :digest")
+    long countByConsoleOutput(@Param("statuses") Collection<Short> statuses, @Param("digest") String digest);
+
+    @Modifying
+    @Query("UPDATE PdbBuild e SET e.lastAccessDate = :date WHERE e.buildHash IN :buildHashes OR e.legacyBuildHash IN :buildHashes")
+    int updateLastAccess(@Param("buildHashes") Collection<String> buildHashes, @Param("date") Date date);
+
+    @Modifying
+    @Query("UPDATE PdbBuild e SET e.buildStatus = :evicted, e.consoleOutput = NULL, e.failReason = NULL, e.psfBuilt = false, e.artifactBytes = 0, " +
+            "e.lastAccessDate = :date WHERE e.id = :id AND e.buildStatus = :status")
+    int evict(@Param("id") long id, @Param("status") short status, @Param("evicted") short evicted, @Param("date") Date date);
+
+    @Modifying
+    @Query("UPDATE PdbBuild e SET e.buildStatus = :status, e.lastAccessDate = :date WHERE e.id = :id AND e.buildStatus = :evicted")
+    int restore(@Param("id") long id, @Param("evicted") short evicted, @Param("status") short status, @Param("date") Date date);
 }
@@ -1,23 +1,376 @@
 package com.uct.carbbuilder.model.build;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Finished builds only change when retention evicts them, so hash lookups of successful, failed and
+ * timed out builds are answered from an in-memory cache and repeated status polls stay off the
+ * database. Writes on this node invalidate the cache, and entries expire after {@code buildttlms} so
+ * that a build evicted by another node is not served as finished for longer than that. Hashes with no
+ * build are remembered for a short time as well. In progress and evicted builds are always read from
+ * the database.
+ */
 @Service
 public class PdbBuildAccessService
 {
+    private static final List<Short> FINISHED = Arrays.asList(PdbBuild.SUCCESS, PdbBuild.FAILED, PdbBuild.TIMEOUT);
+
     @Autowired
     private PdbBuildAccess pdbBuildAccess;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${twoody.app.cache.buildentries}")
+    private long maxEntries;
+
+    @Value("${twoody.app.cache.buildttlms}")
+    private long buildTtlMs;
+
+    @Value("${twoody.app.cache.unknownhashttlms}")
+    private long unknownHashTtlMs;
+
+    private Cache<String, PdbBuild> finishedBuilds;
+
+    private Cache<String, Boolean> unknownHashes;
+
+    private Timer findByHashTimer;
+
+    // Bumped on every write so that a lookup racing an insert does not remember the hash as unknown
+    private final AtomicLong writes = new AtomicLong();
+
+    @PostConstruct
+    public void init()
+    {
+        finishedBuilds = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(buildTtlMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        unknownHashes = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(unknownHashTtlMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, finishedBuilds, "finishedBuilds");
+        CaffeineCacheMetrics.monitor(meterRegistry, unknownHashes, "unknownHashes");
+        findByHashTimer = Timer.builder("carbbuilder.db.lookup").tag("query", "findByHash").register(meterRegistry);
+    }
+
+    /**
+     * Resolves hex build hashes and, for links made before hex keys, legacy hashes.
+     */
     public Optional<PdbBuild> findByBuildHash(String buildHash)
     {
-        return pdbBuildAccess.findByHash(buildHash);
+        PdbBuild cached = finishedBuilds.getIfPresent(buildHash);
+        if (cached != null)
+            return Optional.of(cached);
+        if (unknownHashes.getIfPresent(buildHash) != null)
+            return Optional.empty();
+
+        long writesBefore = writes.get();
+        Optional<PdbBuild> build = findByHashTimer.record(() -> PdbBuild.isHexHash(buildHash)
+                ? pdbBuildAccess.findByHash(buildHash)
+                : pdbBuildAccess.findByLegacyHash(buildHash));
+        if (!build.isPresent())
+        {
+            unknownHashes.put(buildHash, Boolean.TRUE);
+            if (writes.get() != writesBefore)
+                unknownHashes.invalidate(buildHash);
+        }
+        else if (build.get().isBuildFinished())
+        {
+            finishedBuilds.put(buildHash, build.get());
+            if (writes.get() != writesBefore)
+                finishedBuilds.invalidate(buildHash);
+        }
+        return build;
+    }
+
+    /**
+     * Looks up many hex build hashes with one query. Hashes with no build are left out of the map.
+     */
+    public Map<String, PdbBuild> findByBuildHashes(Collection<String> buildHashes)
+    {
+        Map<String, PdbBuild> builds = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String buildHash : buildHashes)
+        {
+            PdbBuild cached = finishedBuilds.getIfPresent(buildHash);
+            if (cached != null)
+                builds.put(buildHash, cached);
+            else
+                uncached.add(buildHash);
+        }
+
+        if (!uncached.isEmpty())
+        {
+            for (PdbBuild build : pdbBuildAccess.findByHashIn(uncached))
+                builds.put(build.getBuildHash(), build);
+        }
+        return builds;
+    }
+
+    /**
+     * Reads the status of many builds with one projection query, finished builds come from the cache.
+     * Hashes with no build are left out of the map.
+     */
+    public Map<String, BuildStatus> findStatuses(Collection<String> buildHashes)
+    {
+        Map<String, BuildStatus> statuses = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String buildHash : buildHashes)
+        {
+            PdbBuild cached = finishedBuilds.getIfPresent(buildHash);
+            if (cached != null)
+                statuses.put(buildHash, new BuildStatus(cached));
+            else if (PdbBuild.isHexHash(buildHash))
+                uncached.add(buildHash);
+            else
+                findByBuildHash(buildHash).ifPresent(build -> statuses.put(buildHash, new BuildStatus(build)));
+        }
+
+        if (!uncached.isEmpty())
+        {
+            for (BuildStatus status : pdbBuildAccess.findStatusByHashIn(uncached))
+                statuses.put(status.getBuildHash(), status);
+        }
+        return statuses;
+    }
+
+    public Optional<PdbBuild> findById(long id)
+    {
+        return pdbBuildAccess.findById(id);
+    }
+
+    /**
+     * In progress builds that have no queue entry, e.g. rows left behind by a restart before the
+     * build queue existed.
+     */
+    public List<PdbBuild> findOrphanedInProgress(int batchSize)
+    {
+        return pdbBuildAccess.findUnqueuedByStatus(PdbBuild.IN_PROGRESS, PageRequest.of(0, batchSize));
+    }
+
+    /**
+     * The most recent successful builds with a measured duration, newest first.
+     */
+    public List<PdbBuild> findRecentlyMeasured(int count)
+    {
+        return pdbBuildAccess.findMeasuredByStatus(PdbBuild.SUCCESS, PageRequest.of(0, count));
+    }
+
+    /**
+     * Builds created before hex keys that have not been given one yet.
+     */
+    public List<PdbBuild> findWithoutHash(long afterId, int batchSize)
+    {
+        return pdbBuildAccess.findWithoutHash(afterId, PageRequest.of(0, batchSize));
+    }
+
+    /**
+     * Finished builds in the order they should be evicted, least recently requested first.
+     */
+    public List<PdbBuild> findLeastRecentlyAccessed(int batchSize)
+    {
+        return pdbBuildAccess.findLeastRecentlyAccessed(FINISHED, PageRequest.of(0, batchSize));
+    }
+
+    /**
+     * Evicted builds that have not been requested since {@code before}.
+     */
+    public List<PdbBuild> findEvictedBefore(Date before, int batchSize)
+    {
+        return pdbBuildAccess.findByStatusAccessedBefore(PdbBuild.EVICTED, before, PageRequest.of(0, batchSize));
+    }
+
+    /**
+     * @return {the number of finished builds, the bytes their artifacts take up}
+     */
+    public long[] countFinished()
+    {
+        Object[] row = pdbBuildAccess.countWithArtifactBytes(FINISHED).get(0);
+        return new long[]{((Number) row[0]).longValue(), ((Number) row[1]).longValue()};
+    }
+
+    /**
+     * @return true if a finished build still refers to the log
+     */
+    public boolean isLogReferenced(String digest)
+    {
+        return pdbBuildAccess.countByConsoleOutput(FINISHED, digest) > 0;
+    }
+
+    @Transactional
+    public void updateLastAccess(Collection<String> buildHashes, Date date)
+    {
+        pdbBuildAccess.updateLastAccess(buildHashes, date);
+    }
+
+    /**
+     * Marks a build evicted, dropping the columns that refer to its artifacts. Only one of several
+     * nodes evicting the same build succeeds.
+     *
+     * @return false if the build changed since it was read
+     */
+    @Transactional
+    public boolean markEvicted(PdbBuild build)
+    {
+        try
+        {
+            return pdbBuildAccess.evict(build.getId(), build.getBuildStatus(), PdbBuild.EVICTED, new Date()) == 1;
+        }
+        finally
+        {
+            evict(build);
+        }
+    }
+
+    /**
+     * Puts an evicted build back in progress so that it can be queued again. Only one of several
+     * requests for the same build succeeds.
+     *
+     * @return false if the build is no longer evicted
+     */
+    @Transactional
+    public boolean markRebuilding(PdbBuild build)
+    {
+        try
+        {
+            return pdbBuildAccess.restore(build.getId(), PdbBuild.EVICTED, PdbBuild.IN_PROGRESS, new Date()) == 1;
+        }
+        finally
+        {
+            evict(build);
+        }
+    }
+
+    public void deleteAll(List<PdbBuild> builds)
+    {
+        try
+        {
+            pdbBuildAccess.deleteAll(builds);
+        }
+        finally
+        {
+            for (PdbBuild build : builds)
+                evict(build);
+        }
+    }
+
+    /**
+     * Saves the builds in one transaction, new builds are inserted in JDBC batches. Fails as a whole if
+     * any build hash is already taken.
+     */
+    public void saveAll(List<PdbBuild> builds)
+    {
+        try
+        {
+            pdbBuildAccess.saveAll(builds);
+        }
+        finally
+        {
+            for (PdbBuild build : builds)
+                evict(build);
+        }
+    }
+
+    /**
+     * Inserts the build unless a build with the same hash already exists. The unique constraint on
+     * the build hash decides between concurrent inserts, so exactly one caller gets {@code true}.
+     */
+    public boolean insertIfAbsent(PdbBuild build)
+    {
+        return saveIfUnique(build);
+    }
+
+    /**
+     * @return false, without saving, if another build already has the build hash
+     */
+    public boolean saveIfUnique(PdbBuild build)
+    {
+        try
+        {
+            pdbBuildAccess.saveAndFlush(build);
+            return true;
+        }
+        catch (DataIntegrityViolationException e)
+        {
+            return false;
+        }
+        finally
+        {
+            evict(build);
+        }
     }
 
     public PdbBuild save(PdbBuild build)
     {
-        return pdbBuildAccess.save(build);
+        try
+        {
+            return pdbBuildAccess.save(build);
+        }
+        finally
+        {
+            evict(build);
+        }
+    }
+
+    public void delete(PdbBuild build)
+    {
+        try
+        {
+            pdbBuildAccess.delete(build);
+        }
+        finally
+        {
+            evict(build);
+        }
+    }
+
+    public CacheStats getFinishedBuildStats()
+    {
+        return finishedBuilds.stats();
+    }
+
+    public CacheStats getUnknownHashStats()
+    {
+        return unknownHashes.stats();
+    }
+
+    private void evict(PdbBuild build)
+    {
+        writes.incrementAndGet();
+        for (String buildHash : new String[]{build.getBuildHash(), build.getLegacyBuildHash()})
+        {
+            if (buildHash == null)
+                continue;
+            finishedBuilds.invalidate(buildHash);
+            unknownHashes.invalidate(buildHash);
+        }
     }
 }
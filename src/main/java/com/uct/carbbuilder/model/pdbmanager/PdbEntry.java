@@ -6,7 +6,12 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 @Entity
-@Table
+@Table(indexes = {
+        @Index(name = "idx_pdb_entry_build", columnList = "pdbBuildId"),
+        @Index(name = "idx_pdb_entry_pdb_digest", columnList = "pdbDigest"),
+        @Index(name = "idx_pdb_entry_psf_digest", columnList = "psfDigest"),
+        @Index(name = "idx_pdb_entry_text_digest", columnList = "textDigest")
+})
 public class PdbEntry
 {
 
@@ -14,8 +19,26 @@ public class PdbEntry
     @GeneratedValue(strategy = GenerationType.AUTO)
     private long id;
 
+    /**
+     * Where the PDB file was written before the artifact store, null for newer builds. The PSF and
+     * /file/text payload were written beside it.
+     */
     private String pdbFilePath;
 
+    /**
+     * Digests of the build outputs in the {@link com.uct.carbbuilder.model.artifact.ArtifactStore}.
+     * The PSF digest is null if CarbBuilder did not write one, the text digest until the /file/text
+     * payload is rendered.
+     */
+    @Column(length = 64)
+    private String pdbDigest;
+
+    @Column(length = 64)
+    private String psfDigest;
+
+    @Column(length = 64)
+    private String textDigest;
+
     private long pdbBuildId;
 
     @Column(columnDefinition="TEXT")
@@ -27,11 +50,10 @@ public class PdbEntry
     {
     }
 
-    public PdbEntry(long pdbBuildId, String fileName)
+    public PdbEntry(long pdbBuildId)
     {
         this.pdbBuildId = pdbBuildId;
         this.createDate = new Date();
-        this.pdbFilePath = fileName;
     }
 
 
@@ -86,9 +108,34 @@ public class PdbEntry
         this.pdbBuildId = pdbBuildId;
     }
 
-    public String getPsfFilePath()
+    public String getPdbDigest()
+    {
+        return pdbDigest;
+    }
+
+    public void setPdbDigest(String pdbDigest)
+    {
+        this.pdbDigest = pdbDigest;
+    }
+
+    public String getPsfDigest()
+    {
+        return psfDigest;
+    }
+
+    public void setPsfDigest(String psfDigest)
+    {
+        this.psfDigest = psfDigest;
+    }
+
+    public String getTextDigest()
+    {
+        return textDigest;
+    }
+
+    public void setTextDigest(String textDigest)
     {
-        return pdbFilePath.replace(".pdb", ".psf");
+        this.textDigest = textDigest;
     }
 }
 
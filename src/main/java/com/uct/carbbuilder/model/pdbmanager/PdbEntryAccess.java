@@ -1,11 +1,13 @@
 package com.uct.carbbuilder.model.pdbmanager;
 
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -13,4 +15,16 @@ public interface PdbEntryAccess extends JpaRepository<PdbEntry, Long>
 {
     @Query("SELECT e FROM PdbEntry e WHERE e.pdbBuildId = :buildId")
     Optional<PdbEntry> findByBuildId(@Param("buildId")long buildId);
+
+    @Query("SELECT e FROM PdbEntry e WHERE e.pdbDigest IS NULL AND e.pdbFilePath IS NOT NULL AND e.id > :afterId ORDER BY e.id")
+    List<PdbEntry> findWithLegacyFiles(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query("SELECT COUNT(e) FROM PdbEntry e WHERE e.pdbDigest = :digest")
+    long countByPdbDigest(@Param("digest") String digest);
+
+    @Query("SELECT COUNT(e) FROM PdbEntry e WHERE e.psfDigest = :digest")
+    long countByPsfDigest(@Param("digest") String digest);
+
+    @Query("SELECT COUNT(e) FROM PdbEntry e WHERE e.textDigest = :digest")
+    long countByTextDigest(@Param("digest") String digest);
 }
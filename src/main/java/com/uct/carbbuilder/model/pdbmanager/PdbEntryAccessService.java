@@ -1,23 +1,108 @@
 package com.uct.carbbuilder.model.pdbmanager;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+import com.uct.carbbuilder.model.artifact.LegacyArtifactMigration;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * An entry is only written once its build has succeeded and is not changed until retention deletes it,
+ * so entries are cached by build id once read, for at most {@code buildttlms} as evictions on other
+ * nodes are not seen here. Entries whose files the {@link LegacyArtifactMigration} has not reached yet
+ * are migrated before they are returned.
+ */
 @Service
 public class PdbEntryAccessService
 {
     @Autowired
     private PdbEntryAccess pdbEntryAccess;
 
+    @Autowired
+    private LegacyArtifactMigration legacyArtifactMigration;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${twoody.app.cache.buildentries}")
+    private long maxEntries;
+
+    @Value("${twoody.app.cache.buildttlms}")
+    private long ttlMs;
+
+    private Cache<Long, PdbEntry> entries;
+
+    private Timer findByBuildIdTimer;
+
+    @PostConstruct
+    public void init()
+    {
+        entries = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, entries, "pdbEntries");
+        findByBuildIdTimer = Timer.builder("carbbuilder.db.lookup").tag("query", "findByBuildId").register(meterRegistry);
+    }
+
     public Optional<PdbEntry> findByBuildId(long id)
     {
-        return pdbEntryAccess.findByBuildId(id);
+        PdbEntry cached = entries.getIfPresent(id);
+        if (cached != null)
+            return Optional.of(cached);
+
+        Optional<PdbEntry> entry = findByBuildIdTimer.record(() -> pdbEntryAccess.findByBuildId(id));
+        entry.ifPresent(legacyArtifactMigration::migrate);
+        entry.ifPresent(found -> entries.put(id, found));
+        return entry;
     }
 
     public void save(PdbEntry entry)
     {
         pdbEntryAccess.save(entry);
+        entries.invalidate(entry.getPdbBuildId());
+    }
+
+    /**
+     * Deletes the entry of an evicted build.
+     *
+     * @return the deleted entry, or empty if the build had none
+     */
+    public Optional<PdbEntry> deleteByBuildId(long id)
+    {
+        Optional<PdbEntry> entry = pdbEntryAccess.findByBuildId(id);
+        entry.ifPresent(pdbEntryAccess::delete);
+        entries.invalidate(id);
+        return entry;
+    }
+
+    /**
+     * @return true if an entry still refers to the artifact
+     */
+    public boolean isReferenced(String digest, ArtifactType type)
+    {
+        switch (type)
+        {
+            case PDB: return pdbEntryAccess.countByPdbDigest(digest) > 0;
+            case PSF: return pdbEntryAccess.countByPsfDigest(digest) > 0;
+            case TEXT: return pdbEntryAccess.countByTextDigest(digest) > 0;
+            default: throw new IllegalArgumentException("Entries do not refer to " + type + " artifacts");
+        }
+    }
+
+    public CacheStats getStats()
+    {
+        return entries.stats();
     }
 }
@@ -0,0 +1,34 @@
+package com.uct.carbbuilder.model.queue;
+
+/**
+ * Scheduling classes, claimed in declaration order. A build submitted on its own usually has someone
+ * waiting on the page for it, while batches come from scripts, and signed in users come before
+ * anonymous traffic within each.
+ */
+public enum BuildPriority
+{
+    INTERACTIVE, INTERACTIVE_ANONYMOUS, BATCH, BATCH_ANONYMOUS;
+
+    public static BuildPriority of(boolean interactive, boolean authenticated)
+    {
+        if (interactive)
+            return authenticated ? INTERACTIVE : INTERACTIVE_ANONYMOUS;
+        return authenticated ? BATCH : BATCH_ANONYMOUS;
+    }
+
+    public static BuildPriority of(short value)
+    {
+        BuildPriority[] values = values();
+        return value >= 0 && value < values.length ? values[value] : BATCH_ANONYMOUS;
+    }
+
+    public short toShort()
+    {
+        return (short) ordinal();
+    }
+
+    public boolean isAnonymous()
+    {
+        return this == INTERACTIVE_ANONYMOUS || this == BATCH_ANONYMOUS;
+    }
+}
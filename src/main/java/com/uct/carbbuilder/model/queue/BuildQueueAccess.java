@@ -0,0 +1,59 @@
+package com.uct.carbbuilder.model.queue;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface BuildQueueAccess extends JpaRepository<BuildQueueEntry, Long>
+{
+    @Query("SELECT COUNT(e) FROM BuildQueueEntry e WHERE e.state = :state")
+    long countByState(@Param("state") short state);
+
+    @Query("SELECT e.priority, COUNT(e) FROM BuildQueueEntry e WHERE e.state = :state GROUP BY e.priority")
+    List<Object[]> countByStateGroupByPriority(@Param("state") short state);
+
+    @Query("SELECT e.priority, e.submitter, COUNT(e), MIN(e.schedulingKey) FROM BuildQueueEntry e " +
+            "WHERE e.state = :pending OR (e.state = :running AND e.leaseExpiry < :now) GROUP BY e.priority, e.submitter")
+    List<Object[]> findClaimableHeads(@Param("pending") short pending, @Param("running") short running, @Param("now") Date now);
+
+    @Query("SELECT e.submitter, COUNT(e) FROM BuildQueueEntry e WHERE e.state = :running AND e.leaseExpiry >= :now GROUP BY e.submitter")
+    List<Object[]> countLeasedBySubmitter(@Param("running") short running, @Param("now") Date now);
+
+    @Query("SELECT e.id FROM BuildQueueEntry e WHERE (e.state = :pending OR (e.state = :running AND e.leaseExpiry < :now)) " +
+            "AND e.priority = :priority AND (e.submitter = :submitter OR (:submitter IS NULL AND e.submitter IS NULL)) ORDER BY e.schedulingKey, e.id")
+    List<Long> findClaimableIds(@Param("pending") short pending, @Param("running") short running, @Param("now") Date now,
+                                @Param("priority") short priority, @Param("submitter") String submitter, Pageable pageable);
+
+    @Query("SELECT e FROM BuildQueueEntry e WHERE e.buildHash = :buildHash")
+    Optional<BuildQueueEntry> findByBuildHash(@Param("buildHash") String buildHash);
+
+    @Query("SELECT COALESCE(SUM(e.estimatedMs), 0) FROM BuildQueueEntry e WHERE e.state = :pending " +
+            "AND (e.priority < :priority OR (e.priority = :priority AND e.schedulingKey < :schedulingKey))")
+    long sumEstimatedAhead(@Param("pending") short pending, @Param("priority") short priority, @Param("schedulingKey") long schedulingKey);
+
+    @Modifying
+    @Query("UPDATE BuildQueueEntry e SET e.state = :running, e.leaseOwner = :owner, e.leaseExpiry = :expiry, e.heartbeatDate = :now, e.claimDate = :now, e.attempts = e.attempts + 1 " +
+            "WHERE e.id IN :ids AND (e.state = :pending OR (e.state = :running AND e.leaseExpiry < :now))")
+    int claim(@Param("ids") Collection<Long> ids, @Param("owner") String owner, @Param("expiry") Date expiry, @Param("now") Date now,
+              @Param("pending") short pending, @Param("running") short running);
+
+    @Query("SELECT e FROM BuildQueueEntry e WHERE e.leaseOwner = :owner AND e.id IN :ids ORDER BY e.id")
+    List<BuildQueueEntry> findLeased(@Param("owner") String owner, @Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Query("UPDATE BuildQueueEntry e SET e.leaseExpiry = :expiry, e.heartbeatDate = :now WHERE e.leaseOwner = :owner AND e.id IN :ids")
+    int renewLeases(@Param("owner") String owner, @Param("ids") Collection<Long> ids, @Param("expiry") Date expiry, @Param("now") Date now);
+
+    @Modifying
+    @Query("UPDATE BuildQueueEntry e SET e.state = :pending, e.leaseOwner = NULL, e.leaseExpiry = NULL WHERE e.leaseOwner = :owner")
+    int releaseLeases(@Param("owner") String owner, @Param("pending") short pending);
+}
@@ -0,0 +1,127 @@
+package com.uct.carbbuilder.model.queue;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@Service
+public class BuildQueueAccessService
+{
+    @Autowired
+    private BuildQueueAccess buildQueueAccess;
+
+    public BuildQueueEntry enqueue(PdbBuild build)
+    {
+        return buildQueueAccess.save(new BuildQueueEntry(build));
+    }
+
+    public BuildQueueEntry enqueue(BuildQueueEntry entry)
+    {
+        return buildQueueAccess.save(entry);
+    }
+
+    public List<BuildQueueEntry> enqueueAll(List<BuildQueueEntry> entries)
+    {
+        return buildQueueAccess.saveAll(entries);
+    }
+
+    public Optional<BuildQueueEntry> findByBuildHash(String buildHash)
+    {
+        return buildQueueAccess.findByBuildHash(buildHash);
+    }
+
+    /**
+     * The estimated run time of the pending entries that will be claimed before {@code entry}, ignoring
+     * the fair share between submitters.
+     */
+    public long sumEstimatedAhead(BuildQueueEntry entry)
+    {
+        return buildQueueAccess.sumEstimatedAhead(BuildQueueEntry.PENDING, entry.getPriority(), entry.getSchedulingKey());
+    }
+
+    public long countPending()
+    {
+        return buildQueueAccess.countByState(BuildQueueEntry.PENDING);
+    }
+
+    public Map<BuildPriority, Long> countPendingByPriority()
+    {
+        Map<BuildPriority, Long> pending = new EnumMap<>(BuildPriority.class);
+        for (BuildPriority priority : BuildPriority.values())
+            pending.put(priority, 0L);
+        for (Object[] row : buildQueueAccess.countByStateGroupByPriority(BuildQueueEntry.PENDING))
+            pending.merge(BuildPriority.of((Short) row[0]), (Long) row[1], Long::sum);
+        return pending;
+    }
+
+    /**
+     * Leases up to {@code max} pending or expired entries to {@code owner}, chosen by {@code fairShare}
+     * from the head of each submitter's queue. The chosen ids are then claimed with a single conditional
+     * update, so entries taken by another node in between are skipped rather than claimed twice. Nodes
+     * claiming at the same moment can each see the same leases, so a submitter can briefly go over
+     * their quota by the number of nodes.
+     */
+    @Transactional
+    public List<BuildQueueEntry> claim(String owner, int max, long leaseMs, FairShareAllocator fairShare)
+    {
+        if (max <= 0)
+            return Collections.emptyList();
+
+        Date now = new Date();
+        List<FairShareAllocator.Head> heads = new ArrayList<>();
+        for (Object[] row : buildQueueAccess.findClaimableHeads(BuildQueueEntry.PENDING, BuildQueueEntry.RUNNING, now))
+            heads.add(new FairShareAllocator.Head((Short) row[0], (String) row[1], (Long) row[2], (Long) row[3]));
+        if (heads.isEmpty())
+            return Collections.emptyList();
+
+        Map<String, Long> leased = new HashMap<>();
+        for (Object[] row : buildQueueAccess.countLeasedBySubmitter(BuildQueueEntry.RUNNING, now))
+            leased.put((String) row[0], (Long) row[1]);
+
+        List<Long> ids = new ArrayList<>();
+        for (Map.Entry<FairShareAllocator.Head, Integer> allocation : fairShare.allocate(heads, leased, max).entrySet())
+        {
+            FairShareAllocator.Head head = allocation.getKey();
+            ids.addAll(buildQueueAccess.findClaimableIds(BuildQueueEntry.PENDING, BuildQueueEntry.RUNNING, now,
+                    head.getPriority(), head.getSubmitter(), PageRequest.of(0, allocation.getValue())));
+        }
+        if (ids.isEmpty())
+            return Collections.emptyList();
+
+        buildQueueAccess.claim(ids, owner, new Date(now.getTime() + leaseMs), now, BuildQueueEntry.PENDING, BuildQueueEntry.RUNNING);
+        return buildQueueAccess.findLeased(owner, ids);
+    }
+
+    @Transactional
+    public void renewLeases(String owner, Collection<Long> ids, long leaseMs)
+    {
+        if (ids.isEmpty())
+            return;
+
+        Date now = new Date();
+        buildQueueAccess.renewLeases(owner, ids, new Date(now.getTime() + leaseMs), now);
+    }
+
+    @Transactional
+    public int releaseLeases(String owner)
+    {
+        return buildQueueAccess.releaseLeases(owner, BuildQueueEntry.PENDING);
+    }
+
+    public void complete(BuildQueueEntry entry)
+    {
+        buildQueueAccess.deleteById(entry.getId());
+    }
+}
@@ -0,0 +1,237 @@
+package com.uct.carbbuilder.model.queue;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+
+import javax.persistence.*;
+import java.util.Date;
+
+@Entity
+@Table(indexes = {
+        @Index(name = "idx_build_queue_state_lease", columnList = "state, leaseExpiry"),
+        @Index(name = "idx_build_queue_owner", columnList = "leaseOwner"),
+        @Index(name = "idx_build_queue_submitter", columnList = "state, priority, submitter, schedulingKey"),
+        @Index(name = "idx_build_queue_hash", columnList = "buildHash")
+})
+public class BuildQueueEntry
+{
+    public static final short PENDING = 0;
+    public static final short RUNNING = 1;
+
+    public static final String SYSTEM_SUBMITTER = "system";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long id;
+
+    @Column(unique = true)
+    private long buildId;
+
+    private String buildHash;
+
+    private short state;
+
+    private String leaseOwner;
+
+    private Date leaseExpiry;
+
+    private Date heartbeatDate;
+
+    private int attempts;
+
+    private Date enqueueDate;
+
+    private String submitter;
+
+    private short priority;
+
+    private long estimatedMs;
+
+    /**
+     * Entries of a submitter in a class are claimed in order of this key. It is the enqueue time plus
+     * the weighted estimated run time, so shorter builds go first, but each millisecond an entry has
+     * waited counts against its estimate and no build waits behind shorter ones for ever.
+     */
+    private long schedulingKey;
+
+    private Date claimDate;
+
+    public BuildQueueEntry()
+    {
+    }
+
+    public BuildQueueEntry(PdbBuild build)
+    {
+        this(build, SYSTEM_SUBMITTER, BuildPriority.BATCH);
+    }
+
+    public BuildQueueEntry(PdbBuild build, String submitter, BuildPriority priority)
+    {
+        this.buildId = build.getId();
+        this.buildHash = build.getBuildHash();
+        this.state = PENDING;
+        this.enqueueDate = new Date();
+        this.submitter = submitter;
+        this.priority = priority.toShort();
+        this.schedulingKey = enqueueDate.getTime();
+    }
+
+    /**
+     * @param sjfWeight how many milliseconds of waiting one millisecond of estimated run time is worth,
+     *                  0 for first come first served
+     */
+    public void schedule(long estimatedMs, double sjfWeight)
+    {
+        this.estimatedMs = estimatedMs;
+        this.schedulingKey = enqueueDate.getTime() + Math.round(estimatedMs * sjfWeight);
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public void setId(long id)
+    {
+        this.id = id;
+    }
+
+    public long getBuildId()
+    {
+        return buildId;
+    }
+
+    public void setBuildId(long buildId)
+    {
+        this.buildId = buildId;
+    }
+
+    public String getBuildHash()
+    {
+        return buildHash;
+    }
+
+    public void setBuildHash(String buildHash)
+    {
+        this.buildHash = buildHash;
+    }
+
+    public short getState()
+    {
+        return state;
+    }
+
+    public void setState(short state)
+    {
+        this.state = state;
+    }
+
+    public boolean isPending()
+    {
+        return state == PENDING;
+    }
+
+    public boolean isRunning()
+    {
+        return state == RUNNING;
+    }
+
+    public String getLeaseOwner()
+    {
+        return leaseOwner;
+    }
+
+    public void setLeaseOwner(String leaseOwner)
+    {
+        this.leaseOwner = leaseOwner;
+    }
+
+    public Date getLeaseExpiry()
+    {
+        return leaseExpiry;
+    }
+
+    public void setLeaseExpiry(Date leaseExpiry)
+    {
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    public Date getHeartbeatDate()
+    {
+        return heartbeatDate;
+    }
+
+    public void setHeartbeatDate(Date heartbeatDate)
+    {
+        this.heartbeatDate = heartbeatDate;
+    }
+
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts)
+    {
+        this.attempts = attempts;
+    }
+
+    public Date getEnqueueDate()
+    {
+        return enqueueDate;
+    }
+
+    public void setEnqueueDate(Date enqueueDate)
+    {
+        this.enqueueDate = enqueueDate;
+    }
+
+    public String getSubmitter()
+    {
+        return submitter;
+    }
+
+    public void setSubmitter(String submitter)
+    {
+        this.submitter = submitter;
+    }
+
+    public short getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority(short priority)
+    {
+        this.priority = priority;
+    }
+
+    public long getEstimatedMs()
+    {
+        return estimatedMs;
+    }
+
+    public void setEstimatedMs(long estimatedMs)
+    {
+        this.estimatedMs = estimatedMs;
+    }
+
+    public long getSchedulingKey()
+    {
+        return schedulingKey;
+    }
+
+    public void setSchedulingKey(long schedulingKey)
+    {
+        this.schedulingKey = schedulingKey;
+    }
+
+    public Date getClaimDate()
+    {
+        return claimDate;
+    }
+
+    public void setClaimDate(Date claimDate)
+    {
+        this.claimDate = claimDate;
+    }
+}
@@ -0,0 +1,114 @@
+package com.uct.carbbuilder.model.queue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whose builds get the free workers. Classes are served strictly in {@link BuildPriority}
+ * order. Within a class each free worker goes to the submitter with the fewest builds leased, and on a
+ * tie to the one whose next entry has the smallest {@link BuildQueueEntry#getSchedulingKey() scheduling
+ * key}. No submitter is given more than their quota, so one heavy submitter can never hold more than
+ * their share of the workers. The {@link BuildQueueEntry#SYSTEM_SUBMITTER system} submitter, which
+ * recovered builds of every user are queued under, has no quota, and as it is the most loaded batch
+ * submitter it only takes the workers no one else claims.
+ */
+public class FairShareAllocator
+{
+    private final int userQuota;
+    private final int anonymousQuota;
+
+    /**
+     * @param userQuota      most builds one signed in user can have running at once
+     * @param anonymousQuota most builds one anonymous client can have running at once
+     */
+    public FairShareAllocator(int userQuota, int anonymousQuota)
+    {
+        this.userQuota = userQuota;
+        this.anonymousQuota = anonymousQuota;
+    }
+
+    /**
+     * @param heads  the claimable entries of each submitter in each class
+     * @param leased builds currently leased per submitter, across all nodes
+     * @param slots  free workers
+     * @return how many entries to claim from each head
+     */
+    public Map<Head, Integer> allocate(List<Head> heads, Map<String, Long> leased, int slots)
+    {
+        Map<Head, Integer> allocation = new LinkedHashMap<>();
+        Map<String, Long> load = new HashMap<>(leased);
+        for (int i = 0; i < slots; i++)
+        {
+            Head best = null;
+            long bestLoad = 0;
+            for (Head head : heads)
+            {
+                long submitterLoad = load.getOrDefault(head.getSubmitter(), 0L);
+                if (allocation.getOrDefault(head, 0) >= head.getPending() || submitterLoad >= getQuota(head))
+                    continue;
+                if (best == null || head.getPriority() < best.getPriority()
+                        || (head.getPriority() == best.getPriority() && (submitterLoad < bestLoad
+                        || (submitterLoad == bestLoad && head.getNextKey() < best.getNextKey()))))
+                {
+                    best = head;
+                    bestLoad = submitterLoad;
+                }
+            }
+            if (best == null)
+                break;
+
+            allocation.merge(best, 1, Integer::sum);
+            load.merge(best.getSubmitter(), 1L, Long::sum);
+        }
+        return allocation;
+    }
+
+    private int getQuota(Head head)
+    {
+        if (BuildQueueEntry.SYSTEM_SUBMITTER.equals(head.getSubmitter()))
+            return Integer.MAX_VALUE;
+        return BuildPriority.of(head.getPriority()).isAnonymous() ? anonymousQuota : userQuota;
+    }
+
+    /**
+     * The claimable entries one submitter has in one class.
+     */
+    public static class Head
+    {
+        private final short priority;
+        private final String submitter;
+        private final long pending;
+        // Scheduling key of the entry that would be claimed next
+        private final long nextKey;
+
+        public Head(short priority, String submitter, long pending, long nextKey)
+        {
+            this.priority = priority;
+            this.submitter = submitter;
+            this.pending = pending;
+            this.nextKey = nextKey;
+        }
+
+        public short getPriority()
+        {
+            return priority;
+        }
+
+        public String getSubmitter()
+        {
+            return submitter;
+        }
+
+        public long getPending()
+        {
+            return pending;
+        }
+
+        public long getNextKey()
+        {
+            return nextKey;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+import org.junit.jupiter.api.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildCostModelTest
+{
+    @Test
+    void usesPriorUntilTrained() throws NoSuchAlgorithmException
+    {
+        BuildCostModel model = new BuildCostModel(5000, 1000);
+
+        assertEquals(5000 + 3 * 1000, model.estimateMs(new PdbBuild("aDGlc(1->4)[bDGal(1->3)]bDGlc", 0, "1.0", "")));
+        assertEquals(5000 + 20 * 1000, model.estimateMs(new PdbBuild("aDMan(1->2)aDMan", 10, "1.0", "")));
+    }
+
+    @Test
+    void learnsSuperlinearGrowthFromHistory() throws NoSuchAlgorithmException
+    {
+        BuildCostModel model = new BuildCostModel(5000, 1000);
+        List<PdbBuild> history = new ArrayList<>();
+        String[] structures = {"aDMan", "aDMan(1->2)aDMan", "aDGlc(1->4)[bDGal(1->3)]bDGlc", "aDGlc(1->4)aDGlc(1->4)aDGlc(1->4)aDGlc"};
+        for (String casper : structures)
+        {
+            for (int units = 0; units <= 12; units += 3)
+            {
+                for (String dihedral : new String[] {"", "aDGlc 1 4 aDGlc 60 180"})
+                {
+                    PdbBuild build = new PdbBuild(casper, units, "1.0", dihedral);
+                    build.setBuildDurationMs(Math.round(cost(casper, units, !dihedral.isEmpty())));
+                    history.add(build);
+                }
+            }
+        }
+
+        model.fit(history);
+
+        PdbBuild small = new PdbBuild("aDMan(1->3)aDMan", 0, "1.0", "");
+        PdbBuild polymer = new PdbBuild("aDMan(1->3)aDMan", 60, "1.0", "");
+        assertEquals(cost("aDMan(1->3)aDMan", 0, false), model.estimateMs(small), 50);
+        assertEquals(cost("aDMan(1->3)aDMan", 60, false), model.estimateMs(polymer), cost("aDMan(1->3)aDMan", 60, false) * 0.05);
+        assertTrue((boolean) model.getStats().get("trained"));
+    }
+
+    private static double cost(String casper, int units, boolean dihedral)
+    {
+        int residues = casper.split("->").length;
+        double built = residues * Math.max(1, units);
+        return 800 + 40 * built + 2.5 * built * built + (casper.contains("[") ? 300 : 0) * Math.max(1, units) + (dihedral ? 150 : 0);
+    }
+}
@@ -1,18 +1,26 @@
 package com.uct.carbbuilder.api.carbbuilder;
 
 import com.uct.carbbuilder.CarbBuilderApplication;
+import com.uct.carbbuilder.api.carbbuilder.payload.CarbBuilderRequest;
 import com.uct.carbbuilder.model.build.PdbBuild;
 import com.uct.carbbuilder.model.build.PdbBuildAccessService;
 import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Collections;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -39,7 +47,8 @@ class BuildRequestControllerTest
         PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
         mvc.perform(post("/carbbuilder/build")
                 .content("{\"casperInput\": \"aDMan(1->3)aDMan\",\"noRepeatingUnits\": 1,\"customDihedral\": \"\"}").contentType(MediaType.APPLICATION_JSON))
-                .andExpect(status().isAccepted()).andExpect(content().string(build.getBuildHash()));
+                .andExpect(status().isAccepted()).andExpect(content().string(build.getBuildHash()))
+                .andExpect(header().exists(BuildRequestController.BUILD_ETA_HEADER));
         PdbBuild build2 = testPdbBuildService.findByBuildHash(build.getBuildHash()).get();
         assertEquals(build2.getCasperInput(), "aDMan(1->3)aDMan");
         assertTrue(build2.isBuildSuccess() || build2.isBuildInProgress());
@@ -58,4 +67,19 @@ class BuildRequestControllerTest
             Thread.sleep(1000);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void serverFailuresAreNotReportedAsBadRequests() throws Exception
+    {
+        BuildRequestService failing = Mockito.mock(BuildRequestService.class);
+        Mockito.when(failing.submit(Mockito.any(), Mockito.any())).thenThrow(new DataAccessResourceFailureException("Connection lost"));
+        Mockito.when(failing.submitAll(Mockito.any(), Mockito.any())).thenThrow(new DataAccessResourceFailureException("Connection lost"));
+        BuildRequestController controller = new BuildRequestController();
+        ReflectionTestUtils.setField(controller, "buildRequestService", failing);
+        ReflectionTestUtils.setField(controller, "maxBatchSize", 10);
+        CarbBuilderRequest request = new CarbBuilderRequest("aDMan(1->3)aDMan", 1, "");
+
+        assertEquals(500, controller.carbBuilderRequest(request, new MockHttpServletRequest()).getStatusCodeValue());
+        assertEquals(500, controller.carbBuilderBatchRequest(Collections.singletonList(request), new MockHttpServletRequest()).getStatusCodeValue());
+    }
+}
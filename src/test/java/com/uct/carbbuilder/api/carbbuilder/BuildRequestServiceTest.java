@@ -0,0 +1,126 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.CarbBuilderApplication;
+import com.uct.carbbuilder.api.carbbuilder.payload.CarbBuilderRequest;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(classes = CarbBuilderApplication.class)
+@TestPropertySource(locations = "classpath:application-integrationtest.properties")
+class BuildRequestServiceTest
+{
+    private static final int REQUESTS = 300;
+    private static final BuildSubmitter SUBMITTER = new BuildSubmitter("anonymous:127.0.0.1", false);
+
+    @Autowired
+    private BuildRequestService buildRequestService;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @MockBean
+    private BuildScheduler buildScheduler;
+
+    @Test
+    void concurrentIdenticalRequestsStartOneBuild() throws Exception
+    {
+        CarbBuilderRequest request = new CarbBuilderRequest("aDGlc(1->4)aDGlc", 1, UUID.randomUUID().toString());
+        List<String> hashes = runConcurrently(() -> buildRequestService.submit(request, SUBMITTER));
+
+        assertEquals(1, new HashSet<>(hashes).size());
+        assertTrue(pdbBuildAccess.findByBuildHash(hashes.get(0)).isPresent());
+        verify(buildScheduler, times(1)).enqueue(any(PdbBuild.class), any(BuildSubmitter.class));
+    }
+
+    @Test
+    void concurrentInsertsOfTheSameHashKeepOneRow() throws Exception
+    {
+        String dihedral = UUID.randomUUID().toString();
+        List<Boolean> inserted = runConcurrently(() -> pdbBuildAccess.insertIfAbsent(new PdbBuild("aDGlc(1->4)aDGlc", 1, "1.0", dihedral)));
+
+        assertEquals(1, inserted.stream().filter(Boolean::booleanValue).count());
+    }
+
+    @Test
+    void equivalentRequestIsCountedAsCanonicalizedReuse() throws Exception
+    {
+        String dihedral = "aDGlc 1 4 aDGlc 60 180 " + UUID.randomUUID();
+        long reusedAfterCanonicalization = buildRequestService.getReusedAfterCanonicalization();
+
+        String hash = buildRequestService.submit(new CarbBuilderRequest("aDGlc(1->4)aDGlc", 1, dihedral), SUBMITTER);
+        assertEquals(hash, buildRequestService.submit(new CarbBuilderRequest(" aDGlc (1-4) aDGlc", 1, dihedral.replace(" 60 ", " 60.0 ") + "\n"), SUBMITTER));
+        assertEquals(reusedAfterCanonicalization + 1, buildRequestService.getReusedAfterCanonicalization());
+    }
+
+    @Test
+    void batchKeepsRequestOrderAndStartsEachNewBuildOnce() throws Exception
+    {
+        String dihedral = UUID.randomUUID().toString();
+        String existing = buildRequestService.submit(new CarbBuilderRequest("aDGlc(1->2)aDGlc", 1, dihedral), SUBMITTER);
+
+        List<CarbBuilderRequest> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            batch.add(new CarbBuilderRequest("aDGlc(1->" + (i % 5 + 2) + ")aDGlc", 1, dihedral));
+        List<String> hashes = buildRequestService.submitAll(batch, SUBMITTER);
+
+        assertEquals(20, hashes.size());
+        assertEquals(existing, hashes.get(0));
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals(hashes.get(i % 5), hashes.get(i));
+            assertTrue(pdbBuildAccess.findByBuildHash(hashes.get(i)).isPresent());
+        }
+        ArgumentCaptor<List<PdbBuild>> queued = ArgumentCaptor.forClass(List.class);
+        verify(buildScheduler).enqueueAll(queued.capture(), any(BuildSubmitter.class));
+        assertEquals(4, queued.getValue().size());
+    }
+
+    private static <T> List<T> runConcurrently(Callable<T> call) throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(64);
+        CountDownLatch start = new CountDownLatch(1);
+        try
+        {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++)
+            {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return call.call();
+                }));
+            }
+            start.countDown();
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures)
+                results.add(future.get());
+            return results;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.CarbBuilderApplication;
+import com.uct.carbbuilder.api.file.PDBFileController;
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+import com.uct.carbbuilder.model.build.BuildAccessTracker;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(classes = CarbBuilderApplication.class)
+@TestPropertySource(locations = "classpath:application-integrationtest.properties", properties = {"twoody.app.artifacts.root=target/test-artifacts", "twoody.app.retention.artifactgraceminutes=0"})
+class BuildRetentionJobTest
+{
+    private static final BuildSubmitter SUBMITTER = new BuildSubmitter("anonymous:127.0.0.1", false);
+
+    @Autowired
+    private BuildRetentionJob buildRetentionJob;
+
+    @Autowired
+    private BuildRequestService buildRequestService;
+
+    @Autowired
+    private BuildAccessTracker buildAccessTracker;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Autowired
+    private PdbEntryAccessService pdbEntryAccess;
+
+    @Autowired
+    private ArtifactStore artifactStore;
+
+    @Autowired
+    private PDBFileController pdbFileController;
+
+    @MockBean
+    private BuildScheduler buildScheduler;
+
+    @Test
+    void evictedBuildKeepsSharedArtifactsAndIsRebuiltOnce() throws Exception
+    {
+        String pdb = artifactStore.put(("ATOM " + UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8), ArtifactType.PDB);
+        PdbBuild first = successfulBuild(pdb);
+        PdbBuild second = successfulBuild(pdb);
+
+        assertTrue(buildRetentionJob.evict(first));
+        assertTrue(pdbBuildAccess.findByBuildHash(first.getBuildHash()).get().isBuildEvicted());
+        assertFalse(pdbEntryAccess.findByBuildId(first.getId()).isPresent());
+        assertTrue(artifactStore.get(pdb, ArtifactType.PDB, false).isPresent());
+        // Already evicted, so a second node evicting it from a stale read does nothing
+        assertFalse(buildRetentionJob.evict(first));
+
+        assertTrue(buildRetentionJob.evict(second));
+        assertFalse(artifactStore.get(pdb, ArtifactType.PDB, false).isPresent());
+        assertFalse(artifactStore.get(pdb, ArtifactType.PDB, true).isPresent());
+
+        PdbBuild evicted = pdbBuildAccess.findByBuildHash(first.getBuildHash()).get();
+        assertTrue(buildRequestService.rebuildIfEvicted(evicted, SUBMITTER).isBuildInProgress());
+        assertTrue(buildRequestService.rebuildIfEvicted(evicted, SUBMITTER).isBuildInProgress());
+        assertTrue(pdbBuildAccess.findByBuildHash(first.getBuildHash()).get().isBuildInProgress());
+        verify(buildScheduler, times(1)).enqueue(any(PdbBuild.class), any(BuildSubmitter.class));
+    }
+
+    @Test
+    void evictedBuildIsRebuiltForEventSubscribersAndLongPolls() throws Exception
+    {
+        PdbBuild streamed = successfulBuild(artifactStore.put(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8), ArtifactType.PDB));
+        assertTrue(buildRetentionJob.evict(streamed));
+
+        ResponseEntity<?> events = pdbFileController.getBuildEvents(streamed.getBuildHash(), new MockHttpServletRequest());
+        assertEquals(200, events.getStatusCodeValue());
+        assertTrue(pdbBuildAccess.findByBuildHash(streamed.getBuildHash()).get().isBuildInProgress());
+
+        PdbBuild polled = successfulBuild(artifactStore.put(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8), ArtifactType.PDB));
+        assertTrue(buildRetentionJob.evict(polled));
+
+        DeferredResult<ResponseEntity<?>> result = pdbFileController.getFileTextWhenDone(polled.getBuildHash(), 30, new MockHttpServletRequest());
+        // Parked until the rebuild finishes rather than answered with the evicted build
+        assertFalse(result.hasResult());
+        assertTrue(pdbBuildAccess.findByBuildHash(polled.getBuildHash()).get().isBuildInProgress());
+        verify(buildScheduler, times(2)).enqueue(any(PdbBuild.class), any(BuildSubmitter.class));
+    }
+
+    @Test
+    void evictedBuildIsRebuiltForDownloads() throws Exception
+    {
+        PdbBuild build = successfulBuild(artifactStore.put(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8), ArtifactType.PDB));
+        assertTrue(buildRetentionJob.evict(build));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        pdbFileController.getPSFFileDownload(build.getBuildHash(), new MockHttpServletRequest(), response);
+        assertEquals(202, response.getStatus());
+        assertTrue(pdbBuildAccess.findByBuildHash(build.getBuildHash()).get().isBuildInProgress());
+        verify(buildScheduler, times(1)).enqueue(any(PdbBuild.class), any(BuildSubmitter.class));
+    }
+
+    @Test
+    void rebuiltBuildIsDownloadedUnderTheEtagOfItsNewContent() throws Exception
+    {
+        String before = artifactStore.put(("REMARK   1 CREATED " + UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8), ArtifactType.PDB);
+        PdbBuild build = successfulBuild(before);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        pdbFileController.getPDBFileDownload(build.getBuildHash(), new MockHttpServletRequest(), response);
+        String etag = response.getHeader("ETag");
+        assertEquals("\"" + before + "\"", etag);
+
+        assertTrue(buildRetentionJob.evict(build));
+        PdbBuild rebuilt = buildRequestService.rebuildIfEvicted(pdbBuildAccess.findByBuildHash(build.getBuildHash()).get(), SUBMITTER);
+        rebuilt.setBuildSuccess();
+        pdbBuildAccess.save(rebuilt);
+        String after = artifactStore.put(("REMARK   1 CREATED " + UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8), ArtifactType.PDB);
+        PdbEntry entry = new PdbEntry(rebuilt.getId());
+        entry.setPdbDigest(after);
+        pdbEntryAccess.save(entry);
+
+        MockHttpServletRequest revalidate = new MockHttpServletRequest();
+        revalidate.addHeader("If-None-Match", etag);
+        response = new MockHttpServletResponse();
+        pdbFileController.getPDBFileDownload(build.getBuildHash(), revalidate, response);
+        assertEquals(200, response.getStatus());
+        assertEquals("\"" + after + "\"", response.getHeader("ETag"));
+    }
+
+    @Test
+    void requestedBuildsAreNotTheColdest() throws Exception
+    {
+        PdbBuild build = successfulBuild(artifactStore.put(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8), ArtifactType.PDB));
+        build.setLastAccessDate(new Date(0));
+        pdbBuildAccess.save(build);
+        assertTrue(pdbBuildAccess.findLeastRecentlyAccessed(1000).stream().anyMatch(cold -> cold.getId() == build.getId()));
+
+        buildAccessTracker.record(build.getBuildHash());
+        buildAccessTracker.flush();
+
+        Date lastAccess = pdbBuildAccess.findById(build.getId()).get().getLastAccessDate();
+        assertTrue(System.currentTimeMillis() - lastAccess.getTime() < 60000);
+    }
+
+    @Test
+    void onlyHashesOfExistingBuildsAreRecorded() throws Exception
+    {
+        buildAccessTracker.flush();
+        Set<?> accessed = (Set<?>) ReflectionTestUtils.getField(buildAccessTracker, "accessed");
+        String unknown = PdbBuild.getBuildHash("aDGlc(1->4)aDGlc", 1, "1.0", UUID.randomUUID().toString());
+
+        pdbFileController.getFileText(unknown, null, new MockHttpServletRequest());
+        pdbFileController.getPDBFileDownload(unknown, new MockHttpServletRequest(), new MockHttpServletResponse());
+        pdbFileController.getPDBFileDownload(UUID.randomUUID().toString(), new MockHttpServletRequest(), new MockHttpServletResponse());
+        assertTrue(accessed.isEmpty());
+
+        PdbBuild build = successfulBuild(artifactStore.put(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8), ArtifactType.PDB));
+        pdbFileController.getPDBFileDownload(build.getBuildHash(), new MockHttpServletRequest(), new MockHttpServletResponse());
+        assertTrue(accessed.contains(build.getBuildHash()));
+    }
+
+    private PdbBuild successfulBuild(String pdbDigest) throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDGlc(1->4)aDGlc", 1, "1.0", UUID.randomUUID().toString());
+        build.setBuildSuccess();
+        build.setArtifactBytes(100);
+        assertTrue(pdbBuildAccess.insertIfAbsent(build));
+
+        PdbEntry entry = new PdbEntry(build.getId());
+        entry.setPdbDigest(pdbDigest);
+        pdbEntryAccess.save(entry);
+        return build;
+    }
+}
@@ -0,0 +1,136 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import com.uct.carbbuilder.model.queue.BuildPriority;
+import com.uct.carbbuilder.model.queue.BuildQueueAccessService;
+import com.uct.carbbuilder.model.queue.BuildQueueEntry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class BuildSchedulerTest
+{
+    private static final BuildSubmitter SUBMITTER = new BuildSubmitter("user:1", true);
+
+    private BuildScheduler scheduler;
+    private BuildQueueAccessService buildQueue;
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @BeforeEach
+    void setUp()
+    {
+        buildQueue = Mockito.mock(BuildQueueAccessService.class);
+        pdbBuildAccess = Mockito.mock(PdbBuildAccessService.class);
+        when(buildQueue.claim(anyString(), anyInt(), anyLong(), any())).thenReturn(Collections.emptyList());
+
+        scheduler = new BuildScheduler();
+        ReflectionTestUtils.setField(scheduler, "buildQueue", buildQueue);
+        ReflectionTestUtils.setField(scheduler, "pdbBuildAccess", pdbBuildAccess);
+        ReflectionTestUtils.setField(scheduler, "eventPublisher", Mockito.mock(ApplicationEventPublisher.class));
+        ReflectionTestUtils.setField(scheduler, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(scheduler, "workers", 2);
+        ReflectionTestUtils.setField(scheduler, "queueCapacity", 3);
+        ReflectionTestUtils.setField(scheduler, "retryAfterSeconds", 15);
+        ReflectionTestUtils.setField(scheduler, "leaseMs", 60000L);
+        ReflectionTestUtils.setField(scheduler, "maxAttempts", 3);
+        ReflectionTestUtils.setField(scheduler, "nodeId", "test-node");
+        ReflectionTestUtils.setField(scheduler, "userQuota", 2);
+        ReflectionTestUtils.setField(scheduler, "anonymousQuota", 1);
+        ReflectionTestUtils.setField(scheduler, "sjfWeight", 1.0);
+        ReflectionTestUtils.setField(scheduler, "buildCostModel", new BuildCostModel(1000, 1000));
+        scheduler.init();
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void batchIsRejectedUnlessItFitsWhole() throws Exception
+    {
+        List<PdbBuild> builds = Arrays.asList(new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", ""), new PdbBuild("aDMan(1->2)aDMan", 1, "1.0", ""));
+        when(buildQueue.countPending()).thenReturn(2L);
+        assertThrows(BuildQueueFullException.class, () -> scheduler.enqueueAll(builds, SUBMITTER));
+        verify(buildQueue, never()).enqueueAll(any());
+
+        when(buildQueue.countPending()).thenReturn(1L);
+        scheduler.enqueueAll(builds, SUBMITTER);
+        ArgumentCaptor<List<BuildQueueEntry>> entries = ArgumentCaptor.forClass(List.class);
+        verify(buildQueue).enqueueAll(entries.capture());
+        assertEquals(2, entries.getValue().size());
+        assertEquals(BuildPriority.BATCH.toShort(), entries.getValue().get(0).getPriority());
+        assertEquals("user:1", entries.getValue().get(1).getSubmitter());
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        when(buildQueue.countPending()).thenReturn(2L);
+        scheduler.enqueue(build, SUBMITTER);
+        verify(buildQueue).enqueue(ArgumentMatchers.<BuildQueueEntry>argThat(entry -> entry.getPriority() == BuildPriority.INTERACTIVE.toShort()));
+        verify(buildQueue).claim(eq("test-node"), eq(2), eq(60000L), any());
+
+        when(buildQueue.countPending()).thenReturn(3L);
+        BuildQueueFullException ex = assertThrows(BuildQueueFullException.class, () -> scheduler.enqueue(build, SUBMITTER));
+        assertEquals(15, ex.getRetryAfterSeconds());
+        verify(buildQueue, times(1)).enqueue(any(BuildQueueEntry.class));
+    }
+
+    @Test
+    void failsBuildAfterMaxAttempts() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        build.setId(7);
+        BuildQueueEntry entry = new BuildQueueEntry(build);
+        entry.setAttempts(4);
+        when(buildQueue.claim(anyString(), anyInt(), anyLong(), any())).thenReturn(Collections.singletonList(entry));
+        when(pdbBuildAccess.findById(7)).thenReturn(Optional.of(build));
+
+        scheduler.dispatch();
+
+        assertTrue(build.isBuildFailed());
+        verify(pdbBuildAccess).save(build);
+        verify(buildQueue).complete(entry);
+        assertEquals(0, scheduler.getActiveWorkers());
+    }
+
+    @Test
+    void recordsQueueWaitPerClass() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        build.setId(8);
+        build.setBuildSuccess();
+        BuildQueueEntry entry = new BuildQueueEntry(build, "anonymous:10.0.0.1", BuildPriority.INTERACTIVE_ANONYMOUS);
+        entry.setEnqueueDate(new Date(System.currentTimeMillis() - 5000));
+        entry.setAttempts(1);
+        when(buildQueue.claim(anyString(), anyInt(), anyLong(), any())).thenReturn(Collections.singletonList(entry));
+        when(pdbBuildAccess.findById(8)).thenReturn(Optional.of(build));
+
+        scheduler.dispatch();
+
+        QueueWaitStats stats = scheduler.getWaitStats().get(BuildPriority.INTERACTIVE_ANONYMOUS);
+        assertEquals(1, stats.getClaimed());
+        assertTrue(stats.getMaxWaitMs() >= 5000);
+        assertEquals(0, scheduler.getWaitStats().get(BuildPriority.INTERACTIVE).getClaimed());
+    }
+}
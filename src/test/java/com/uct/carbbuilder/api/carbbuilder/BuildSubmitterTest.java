@@ -0,0 +1,61 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import com.uct.carbbuilder.CarbBuilderApplication;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(classes = CarbBuilderApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(locations = "classpath:application-integrationtest.properties")
+class BuildSubmitterTest
+{
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @MockBean
+    private BuildScheduler buildScheduler;
+
+    private final long structure = Math.abs(UUID.randomUUID().getLeastSignificantBits() % 1000000) * 10;
+
+    @Test
+    void anonymousClientsBehindTheProxyAreToldApart() throws Exception
+    {
+        // The test connects from loopback, which is trusted as a proxy like the deployed reverse proxy
+        assertEquals(202, submit("203.0.113.7", 1).getStatusCodeValue());
+        assertEquals(202, submit("198.51.100.23", 2).getStatusCodeValue());
+
+        ArgumentCaptor<BuildSubmitter> submitters = ArgumentCaptor.forClass(BuildSubmitter.class);
+        verify(buildScheduler, times(2)).enqueue(any(PdbBuild.class), submitters.capture());
+        assertEquals(new HashSet<>(Arrays.asList("anonymous:203.0.113.7", "anonymous:198.51.100.23")),
+                new HashSet<>(Arrays.asList(submitters.getAllValues().get(0).getKey(), submitters.getAllValues().get(1).getKey())));
+        assertFalse(submitters.getValue().isAuthenticated());
+    }
+
+    private ResponseEntity<String> submit(String clientAddress, int index)
+    {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set("X-Forwarded-For", clientAddress);
+        // A new structure each time, so both are queued rather than coalesced
+        String body = "{\"casperInput\": \"aDMan(1->3)aDMan\",\"noRepeatingUnits\": 1,\"customDihedral\": \"aDMan 1 3 aDMan,2,60 60." + (structure + index) + "\"}";
+        return restTemplate.postForEntity("/carbbuilder/carbbuilder/build", new HttpEntity<>(body, headers), String.class);
+    }
+}
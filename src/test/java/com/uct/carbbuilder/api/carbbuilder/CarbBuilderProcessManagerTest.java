@@ -1,14 +1,161 @@
 package com.uct.carbbuilder.api.carbbuilder;
 
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.ArtifactType;
+import com.uct.carbbuilder.model.artifact.FileSystemArtifactStore;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.verify;
 
+@DisabledOnOs(OS.WINDOWS)
 class CarbBuilderProcessManagerTest
 {
+    private static final BuildLimits LIMITS = new BuildLimits(60000, 10000, 600000, 60, 10, 0);
+
+    @TempDir
+    Path tempDir;
+
+    private ArtifactStore artifactStore;
+
+    @BeforeEach
+    void setUp()
+    {
+        artifactStore = new FileSystemArtifactStore(tempDir.resolve("artifacts"));
+    }
+
+    @Test
+    void run() throws Exception
+    {
+        // Floods stderr well past the pipe buffer before printing the linkage, which hangs an undrained process
+        String executable = script("i=0; while [ $i -lt 20000 ]; do echo \"warning line $i\" 1>&2; i=$((i+1)); done\n" +
+                "echo 'FINAL linkage: #2 aDMan (1->3) #1 aDMan: 71.30, -108.50'\n" +
+                "echo 'ATOM      1  C1  MAN     1' > \"$4.pdb\"\n");
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 0, "1.0", "");
+        build.setId(900001);
+        PdbBuildAccessService pdbBuildAccess = Mockito.mock(PdbBuildAccessService.class);
+        PdbEntryAccessService pdbEntryAccess = Mockito.mock(PdbEntryAccessService.class);
+
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        new CarbBuilderProcessManager(build, pdbBuildAccess, pdbEntryAccess, artifactStore, Mockito.mock(ApplicationEventPublisher.class), meterRegistry, LIMITS, executable, false).run();
+
+        assertTrue(build.isBuildSuccess());
+        assertEquals(1, meterRegistry.get("carbbuilder.process.run").tag("outcome", "success").tag("version", "1.0").timer().count());
+        ArgumentCaptor<PdbEntry> entry = ArgumentCaptor.forClass(PdbEntry.class);
+        verify(pdbEntryAccess).save(entry.capture());
+        assertEquals("2 aDMan  1 3 1 aDMan 71.30  -108.50 " + LinkageLineParser.LINE_SEPARATOR, entry.getValue().getLinkages());
+        assertFalse(build.isPsfBuilt());
+        assertNull(entry.getValue().getPsfDigest());
+        assertArrayEquals("ATOM      1  C1  MAN     1\n".getBytes(StandardCharsets.UTF_8),
+                artifactStore.get(entry.getValue().getPdbDigest(), ArtifactType.PDB, false).get().readAllBytes());
+        assertTrue(artifactStore.get(entry.getValue().getTextDigest(), ArtifactType.TEXT, true).isPresent());
+        assertNull(build.getConsoleOutput());
+        assertFalse(Files.exists(Paths.get(System.getProperty("user.dir"), "workspace", "900001")));
+    }
+
+    @Test
+    void runKeepsLogAndTailOfFailedBuild() throws Exception
+    {
+        String executable = script("echo 'Reading input'\necho 'Syntax error! Missing > between linkages' 1>&2\n");
+        PdbBuild build = new PdbBuild("aDMan(1-3)aDMan", 0, "1.0", "");
+        build.setId(900002);
+
+        new CarbBuilderProcessManager(build, Mockito.mock(PdbBuildAccessService.class), Mockito.mock(PdbEntryAccessService.class), artifactStore, Mockito.mock(ApplicationEventPublisher.class), new SimpleMeterRegistry(), LIMITS, executable, false).run();
+
+        assertTrue(build.isBuildFailed());
+        assertEquals("This structure could not be built: Reading input | Syntax error! Missing > between linkages", build.getFailReason());
+        byte[] log = artifactStore.get(build.getConsoleOutput(), ArtifactType.LOG, false).get().readAllBytes();
+        assertTrue(new String(log, StandardCharsets.UTF_8).contains("Syntax error!"));
+    }
+
+    @Test
+    void runTimesOutBuildOverItsBudget() throws Exception
+    {
+        String executable = script("echo 'Reading input'\nexec sleep 30\n");
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 0, "1.0", "");
+        build.setId(900003);
+        ApplicationEventPublisher eventPublisher = Mockito.mock(ApplicationEventPublisher.class);
+
+        long start = System.currentTimeMillis();
+        new CarbBuilderProcessManager(build, Mockito.mock(PdbBuildAccessService.class), Mockito.mock(PdbEntryAccessService.class), artifactStore, eventPublisher, new SimpleMeterRegistry(), new BuildLimits(1000, 0, 1000, 1, 0, 0), executable, false).run();
+
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(build.isBuildTimedOut());
+        assertEquals("Build exceeded its time limit of 1s", build.getFailReason());
+        ArgumentCaptor<BuildEvent> event = ArgumentCaptor.forClass(BuildEvent.class);
+        verify(eventPublisher, Mockito.atLeastOnce()).publishEvent(event.capture());
+        assertEquals(BuildEvent.Type.TIMEOUT, event.getValue().getType());
+        assertTrue(artifactStore.get(build.getConsoleOutput(), ArtifactType.LOG, false).isPresent());
+    }
 
     @Test
-    void run()
+    void runStopsProcessesTheBuildStartedThroughTimeout() throws Exception
+    {
+        // Wrapped in timeout(1) as on Linux. The child keeps stdout open, so the build only finishes once
+        // timeout(1) has passed the watchdog's TERM on to it as well
+        String executable = script("exec timeout --kill-after=1s 600s sh -c \"echo 'Reading input'; sleep 30 & wait\"\n");
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 0, "1.0", "");
+        build.setId(900005);
+
+        long start = System.currentTimeMillis();
+        new CarbBuilderProcessManager(build, Mockito.mock(PdbBuildAccessService.class), Mockito.mock(PdbEntryAccessService.class), artifactStore, Mockito.mock(ApplicationEventPublisher.class), new SimpleMeterRegistry(), new BuildLimits(1000, 0, 1000, 1, 0, 0), executable, false).run();
+
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(build.isBuildTimedOut());
+    }
+
+    @Test
+    void runFailsBuildKilledWithinItsBudget() throws Exception
+    {
+        String executable = script("echo 'Reading input'\nkill -9 $$\n");
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 0, "1.0", "");
+        build.setId(900006);
+
+        new CarbBuilderProcessManager(build, Mockito.mock(PdbBuildAccessService.class), Mockito.mock(PdbEntryAccessService.class), artifactStore, Mockito.mock(ApplicationEventPublisher.class), new SimpleMeterRegistry(), LIMITS, executable, false).run();
+
+        assertTrue(build.isBuildFailed());
+        assertEquals("Build was killed before it finished, possibly for running out of memory", build.getFailReason());
+        assertTrue(artifactStore.get(build.getConsoleOutput(), ArtifactType.LOG, false).isPresent());
+    }
+
+    @Test
+    void linuxBuildsRunUnderScaledLimits() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 4, "1.0", "");
+        build.setId(900004);
+
+        CarbBuilderProcessManager manager = new CarbBuilderProcessManager(build, Mockito.mock(PdbBuildAccessService.class), Mockito.mock(PdbEntryAccessService.class), artifactStore, Mockito.mock(ApplicationEventPublisher.class), new SimpleMeterRegistry(), new BuildLimits(60000, 10000, 600000, 60, 10, 512), "CarbBuilder2.exe", true);
+
+        assertEquals(Arrays.asList("timeout", "--kill-after=5s", "100s", "prlimit", "--cpu=100:105", "--as=536870912", "--", "mono", "CarbBuilder2.exe"),
+                manager.getCommand().subList(0, 9));
+    }
+
+    private String script(String body) throws IOException
     {
+        Path script = tempDir.resolve("carbbuilder.sh");
+        Files.write(script, ("#!/bin/sh\n" + body).getBytes(StandardCharsets.UTF_8));
+        script.toFile().setExecutable(true);
+        return script.toString();
     }
-}
\ No newline at end of file
+}
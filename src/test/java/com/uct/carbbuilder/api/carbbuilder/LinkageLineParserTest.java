@@ -0,0 +1,109 @@
+package com.uct.carbbuilder.api.carbbuilder;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkageLineParserTest
+{
+    @Test
+    void matchesRecordedLinkages() throws IOException
+    {
+        List<String> output = Files.readAllLines(Paths.get("testpdb/carbbuilder_output.txt"), StandardCharsets.UTF_8);
+        List<String> golden = Files.readAllLines(Paths.get("testpdb/carbbuilder_linkages.txt"), StandardCharsets.UTF_8);
+
+        StringBuilder linkages = new StringBuilder();
+        for (String line : output)
+        {
+            if (LinkageLineParser.isLinkageLine(line))
+                assertTrue(LinkageLineParser.appendLinkage(line, linkages), line);
+        }
+
+        assertEquals(String.join(LinkageLineParser.LINE_SEPARATOR, golden) + LinkageLineParser.LINE_SEPARATOR, linkages.toString());
+    }
+
+    @Test
+    void parsesThreeBondLinkage()
+    {
+        StringBuilder out = new StringBuilder();
+        assertTrue(LinkageLineParser.appendLinkage("FINAL linkage  (3-bond linkage): #6 aDGlc (1->6) #7 aDMan: -60.0, 180.0, 55.5", out));
+        assertEquals("6 aDGlc  1 6 7 aDMan -60.0  180.0 , 55.5" + LinkageLineParser.LINE_SEPARATOR, out.toString());
+    }
+
+    @Test
+    void rejectsMalformedLines()
+    {
+        StringBuilder out = new StringBuilder("kept");
+        assertFalse(LinkageLineParser.appendLinkage("FINAL linkage: #52 aDGlc (1->3) #51 aDGlc: 61.5", out));
+        assertFalse(LinkageLineParser.appendLinkage("FINAL linkage: #2 aDMan (1->3) #1 aDMan: 1.0,,,", out));
+        assertFalse(LinkageLineParser.appendLinkage("FINAL linkage", out));
+        assertFalse(LinkageLineParser.appendLinkage("", out));
+        assertEquals("kept", out.toString());
+    }
+
+    @Test
+    void matchesPreviousParsingOnMutatedLines()
+    {
+        String base = "FINAL linkage: #12 bDGlcNAc (1->4) #11 aDMan: -71.50, 108.25, -60.1 170.4";
+        String alphabet = "#()->:, 1a";
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++)
+        {
+            StringBuilder line = new StringBuilder(base);
+            int edits = 1 + random.nextInt(3);
+            for (int e = 0; e < edits; e++)
+            {
+                int at = random.nextInt(line.length());
+                if (random.nextBoolean())
+                    line.deleteCharAt(at);
+                else
+                    line.insert(at, alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            String expected = previousParsing(line.toString());
+            StringBuilder out = new StringBuilder();
+            boolean parsed = LinkageLineParser.appendLinkage(line.toString(), out);
+            assertEquals(expected != null, parsed, line.toString());
+            if (parsed)
+                assertEquals(expected + LinkageLineParser.LINE_SEPARATOR, out.toString(), line.toString());
+        }
+    }
+
+    /**
+     * The parsing CarbBuilderProcessManager did before LinkageLineParser, returning null where it threw.
+     */
+    private static String previousParsing(String line)
+    {
+        try
+        {
+            line = line.substring(line.indexOf(':') + 1).trim();
+            String resid1 = line.substring(line.indexOf('#') + 1, line.indexOf(' '));
+            String res1 = line.substring(line.indexOf(' ') + 1, line.indexOf('('));
+            String pos1 = line.substring(line.indexOf('(') + 1, line.indexOf('-'));
+            String pos2 = line.substring(line.indexOf('>') + 1, line.indexOf(')'));
+            String res2id2 = line.substring(line.indexOf(')') + 1, line.indexOf(':')).trim();
+            String resid2 = res2id2.substring(res2id2.indexOf('#') + 1, res2id2.indexOf(' '));
+            String res2 = res2id2.substring(res2id2.indexOf(' ') + 1);
+            String phi = line.substring(line.indexOf(':') + 1, line.indexOf(','));
+            String[] angles = line.substring(line.indexOf(',') + 1).split(",");
+            String psi = angles[0];
+            String other = "";
+            for (int i = 1; i < angles.length; i++)
+            {
+                other += ',' + angles[i];
+            }
+            return resid1 + ' ' + res1 + ' ' + pos1 + ' ' + pos2 + ' ' + resid2 + ' ' + res2 + phi + ' ' + psi + ' ' + other;
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.api.carbbuilder.BuildEvent;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildCompletionWaitersTest
+{
+    @Test
+    void finishedBuildWakesAllParkedRequestsWithOneRender() throws Exception
+    {
+        BuildCompletionWaiters waiters = new BuildCompletionWaiters();
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        AtomicInteger renders = new AtomicInteger();
+
+        List<DeferredResult<ResponseEntity<?>>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(60000L);
+            waiters.park(build.getBuildHash(), result, () -> {
+                renders.incrementAndGet();
+                return ResponseEntity.accepted().body("done");
+            });
+            results.add(result);
+        }
+        assertEquals(50, waiters.getParkedCount());
+
+        waiters.onBuildEvent(BuildEvent.progress(build, 2));
+        assertFalse(results.get(0).hasResult());
+
+        build.setBuildSuccess();
+        waiters.onBuildEvent(BuildEvent.of(build, 2));
+
+        assertEquals(1, renders.get());
+        assertEquals(0, waiters.getParkedCount());
+        for (DeferredResult<ResponseEntity<?>> result : results)
+            assertEquals("done", ((ResponseEntity<?>) result.getResult()).getBody());
+    }
+}
@@ -0,0 +1,89 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.api.carbbuilder.BuildEvent;
+import com.uct.carbbuilder.model.build.BuildStatus;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+class BuildEventPollerTest
+{
+    private BuildEventPoller poller;
+    private BuildEventStream stream;
+    private BuildCompletionWaiters waiters;
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @BeforeEach
+    void setUp()
+    {
+        pdbBuildAccess = Mockito.mock(PdbBuildAccessService.class);
+        stream = new BuildEventStream();
+        ReflectionTestUtils.setField(stream, "pdbBuildAccess", pdbBuildAccess);
+        ReflectionTestUtils.setField(stream, "timeoutMs", 60000L);
+        waiters = new BuildCompletionWaiters();
+
+        // Delivers events as the application context does
+        ApplicationEventPublisher eventPublisher = event -> {
+            stream.onBuildEvent((BuildEvent) event);
+            waiters.onBuildEvent((BuildEvent) event);
+        };
+        poller = new BuildEventPoller();
+        ReflectionTestUtils.setField(poller, "pdbBuildAccess", pdbBuildAccess);
+        ReflectionTestUtils.setField(poller, "buildEventStream", stream);
+        ReflectionTestUtils.setField(poller, "buildCompletionWaiters", waiters);
+        ReflectionTestUtils.setField(poller, "eventPublisher", eventPublisher);
+    }
+
+    @Test
+    void buildsFinishedOnAnotherNodeReachWaitersHere() throws Exception
+    {
+        PdbBuild streamed = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        PdbBuild polled = new PdbBuild("aDMan(1->2)aDMan", 1, "1.0", "");
+        PdbBuild running = new PdbBuild("aDMan(1->4)aDMan", 1, "1.0", "");
+        when(pdbBuildAccess.findByBuildHash(streamed.getBuildHash())).thenReturn(Optional.of(streamed));
+        when(pdbBuildAccess.findByBuildHash(running.getBuildHash())).thenReturn(Optional.of(running));
+
+        assertTrue(stream.subscribe(streamed.getBuildHash()).isPresent());
+        assertTrue(stream.subscribe(running.getBuildHash()).isPresent());
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(60000L);
+        waiters.park(polled.getBuildHash(), result, () -> ResponseEntity.accepted().body("done"));
+
+        Map<String, BuildStatus> statuses = new HashMap<>();
+        streamed.setBuildSuccess();
+        statuses.put(streamed.getBuildHash(), new BuildStatus(streamed));
+        polled.setBuildFailed();
+        statuses.put(polled.getBuildHash(), new BuildStatus(polled));
+        statuses.put(running.getBuildHash(), new BuildStatus(running));
+        when(pdbBuildAccess.findStatuses(anyCollection())).thenReturn(statuses);
+
+        poller.poll();
+
+        verify(pdbBuildAccess, times(1)).findStatuses(anyCollection());
+        assertEquals(Collections.singleton(running.getBuildHash()), stream.getWatchedHashes());
+        assertTrue(result.hasResult());
+        assertEquals(0, waiters.getParkedCount());
+    }
+
+    @Test
+    void nothingIsReadWhileNoOneIsWaiting()
+    {
+        poller.poll();
+
+        verify(pdbBuildAccess, never()).findStatuses(anyCollection());
+    }
+}
@@ -0,0 +1,76 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.api.carbbuilder.BuildEvent;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class BuildEventStreamTest
+{
+    private BuildEventStream stream;
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @BeforeEach
+    void setUp()
+    {
+        pdbBuildAccess = Mockito.mock(PdbBuildAccessService.class);
+        stream = new BuildEventStream();
+        ReflectionTestUtils.setField(stream, "pdbBuildAccess", pdbBuildAccess);
+        ReflectionTestUtils.setField(stream, "timeoutMs", 60000L);
+    }
+
+    @Test
+    void subscribersOfOneBuildShareOneLookup() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        when(pdbBuildAccess.findByBuildHash(build.getBuildHash())).thenReturn(Optional.of(build));
+
+        for (int i = 0; i < 1000; i++)
+            assertTrue(stream.subscribe(build.getBuildHash()).isPresent());
+
+        verify(pdbBuildAccess, times(1)).findByBuildHash(anyString());
+        assertEquals(1, stream.getChannelCount());
+
+        stream.onBuildEvent(BuildEvent.progress(build, 3));
+        assertEquals(1, stream.getChannelCount());
+
+        build.setBuildSuccess();
+        stream.onBuildEvent(BuildEvent.of(build, 3));
+        assertEquals(0, stream.getChannelCount());
+    }
+
+    @Test
+    void unknownAndFinishedBuildsAreNotWatched() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        build.setBuildFailed();
+        when(pdbBuildAccess.findByBuildHash(anyString())).thenReturn(Optional.empty());
+        when(pdbBuildAccess.findByBuildHash(build.getBuildHash())).thenReturn(Optional.of(build));
+
+        assertFalse(stream.subscribe("unknown").isPresent());
+        assertTrue(stream.subscribe(build.getBuildHash()).isPresent());
+        assertEquals(0, stream.getChannelCount());
+    }
+
+    @Test
+    void evictedBuildsAreReportedAndNotWatched() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        build.setBuildEvicted();
+        when(pdbBuildAccess.findByBuildHash(build.getBuildHash())).thenReturn(Optional.of(build));
+
+        assertEquals(BuildEvent.Type.EVICTED, BuildEvent.of(build, 0).getType());
+        assertTrue(stream.subscribe(build.getBuildHash()).isPresent());
+        // Left open, the subscriber would wait for a build that is never run
+        assertEquals(0, stream.getChannelCount());
+    }
+}
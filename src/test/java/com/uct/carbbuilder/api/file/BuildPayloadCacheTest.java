@@ -0,0 +1,61 @@
+package com.uct.carbbuilder.api.file;
+
+import net.minidev.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildPayloadCacheTest
+{
+    private BuildPayloadCache cache;
+
+    @BeforeEach
+    void setUp()
+    {
+        cache = new BuildPayloadCache();
+        ReflectionTestUtils.setField(cache, "maxBytes", 1000L);
+        ReflectionTestUtils.setField(cache, "ttlMs", 60000L);
+        cache.init();
+    }
+
+    @Test
+    void countsHitsAndMisses()
+    {
+        assertNull(cache.get("a"));
+        cache.put("a", new FileTextPayload(new byte[10], null));
+        assertEquals(10, cache.get("a").getWeight());
+        assertEquals(10, cache.get("a").getWeight());
+
+        JSONObject stats = cache.getStats();
+        assertEquals(2L, stats.get("hits"));
+        assertEquals(1L, stats.get("misses"));
+        assertEquals(10L, stats.get("bytes"));
+    }
+
+    @Test
+    void staysWithinByteBudget()
+    {
+        for (int i = 0; i < 50; i++)
+            cache.put("build" + i, new FileTextPayload(new byte[60], new byte[40]));
+
+        JSONObject stats = cache.getStats();
+        assertTrue((Long) stats.get("bytes") <= 1000L);
+        assertTrue((Long) stats.get("evictions") >= 40L);
+        assertEquals(100L * (Long) stats.get("evictions"), stats.get("evictedBytes"));
+    }
+
+    @Test
+    void entriesExpireAfterBuildTtl() throws Exception
+    {
+        ReflectionTestUtils.setField(cache, "ttlMs", 100L);
+        cache.init();
+        cache.put("a", new FileTextPayload(new byte[10], null));
+        assertNotNull(cache.get("a"));
+
+        // Another node may have evicted the build in the meantime
+        Thread.sleep(300);
+        assertNull(cache.get("a"));
+    }
+}
@@ -0,0 +1,159 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.model.artifact.FileArtifact;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileResponseWriterTest
+{
+    private static final File FILE = new File("testpdb/test1.pdb");
+    private static final String ETAG = "\"abc-pdb\"";
+
+    @Test
+    void writesWholeFileWithCacheHeaders() throws Exception
+    {
+        MockHttpServletResponse response = write(new MockHttpServletRequest("GET", "/"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(ETAG, response.getHeader("ETag"));
+        assertEquals(FileResponseWriter.IMMUTABLE_CACHE_CONTROL, response.getHeader("Cache-Control"));
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertArrayEquals(Files.readAllBytes(FILE.toPath()), response.getContentAsByteArray());
+    }
+
+    @Test
+    void notModifiedWhenEtagMatches() throws Exception
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("If-None-Match", "\"other\", " + ETAG);
+        MockHttpServletResponse response = write(request);
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void writesRequestedRange() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(FILE.toPath());
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Range", "bytes=10-19");
+        MockHttpServletResponse response = write(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 10-19/" + bytes.length, response.getHeader("Content-Range"));
+        assertEquals(10, response.getContentLength());
+        assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), response.getContentAsByteArray());
+
+        assertNull(request.getAttribute(FileResponseWriter.SENDFILE_FILENAME));
+
+        request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Range", "bytes=-5");
+        response = write(request);
+        assertArrayEquals(Arrays.copyOfRange(bytes, bytes.length - 5, bytes.length), response.getContentAsByteArray());
+    }
+
+    @Test
+    void handsRequestedRangeToSendfileWhenSupported() throws Exception
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.setAttribute(FileResponseWriter.SENDFILE_SUPPORT, Boolean.TRUE);
+        request.addHeader("Range", "bytes=10-19");
+        MockHttpServletResponse response = write(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(10, response.getContentLength());
+        assertEquals(FILE.getAbsolutePath(), request.getAttribute(FileResponseWriter.SENDFILE_FILENAME));
+        assertEquals(10L, request.getAttribute(FileResponseWriter.SENDFILE_START));
+        assertEquals(20L, request.getAttribute(FileResponseWriter.SENDFILE_END));
+        // Tomcat writes the body, not the servlet
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() throws Exception
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Range", "bytes=" + FILE.length() + "-");
+        MockHttpServletResponse response = write(request);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */" + FILE.length(), response.getHeader("Content-Range"));
+    }
+
+    @Test
+    void ignoresRangeForStaleIfRange() throws Exception
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Range", "bytes=0-9");
+        request.addHeader("If-Range", "\"stale\"");
+        MockHttpServletResponse response = write(request);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(FILE.length(), response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void writesGzipCopyWhenAccepted(@TempDir Path dir) throws Exception
+    {
+        Path gzip = dir.resolve("output1.pdb.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip)))
+        {
+            Files.copy(FILE.toPath(), out);
+        }
+        FileArtifact artifact = new FileArtifact(FILE.toPath());
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Accept-Encoding", "deflate, gzip;q=0.8");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        long written = FileResponseWriter.write(request, response, artifact, new FileArtifact(gzip), "output1.pdb", ETAG, "application/pdb");
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(response.getContentAsByteArray().length, written);
+        assertEquals("\"abc-pdb-gz\"", response.getHeader("ETag"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertTrue(response.getHeader("Content-Disposition").contains("\"output1.pdb\""));
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())))
+        {
+            assertArrayEquals(Files.readAllBytes(FILE.toPath()), StreamUtils.copyToByteArray(in));
+        }
+
+        request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Accept-Encoding", "gzip;q=0");
+        response = new MockHttpServletResponse();
+        FileResponseWriter.write(request, response, artifact, new FileArtifact(gzip), "output1.pdb", ETAG, "application/pdb");
+        assertNull(response.getHeader("Content-Encoding"));
+        assertArrayEquals(Files.readAllBytes(FILE.toPath()), response.getContentAsByteArray());
+    }
+
+    @Test
+    void missingArtifactIsNotFound() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FileResponseWriter.write(new MockHttpServletRequest("GET", "/"), response, null, null, "output1.pdb", ETAG, "application/pdb");
+
+        assertEquals(404, response.getStatus());
+    }
+
+    private static MockHttpServletResponse write(MockHttpServletRequest request) throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FileResponseWriter.write(request, response, new FileArtifact(FILE.toPath()), null, FILE.getName(), ETAG, "application/pdb");
+        return response;
+    }
+}
@@ -0,0 +1,65 @@
+package com.uct.carbbuilder.api.file;
+
+import com.uct.carbbuilder.model.artifact.ArtifactStore;
+import com.uct.carbbuilder.model.artifact.FileSystemArtifactStore;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.pdbmanager.PdbEntry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTextPayloadTest
+{
+    @Test
+    void successfulBuildIsRenderedOnceAndReadBack(@TempDir Path dir) throws Exception
+    {
+        ArtifactStore artifactStore = new FileSystemArtifactStore(dir);
+        Path pdb = Paths.get("testpdb", "test1.pdb");
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        build.setBuildSuccess();
+        build.setPsfBuilt(true);
+        PdbEntry entry = new PdbEntry(1);
+        entry.setLinkages("2 aDMan 1 3 1 aDMan 71.30 -108.50");
+        assertNull(FileTextPayload.read(artifactStore, entry));
+
+        FileTextPayload.store(artifactStore, build, entry, pdb);
+        assertNotNull(entry.getTextDigest());
+
+        FileTextPayload payload = FileTextPayload.read(artifactStore, entry);
+        JSONObject json = new JSONObject(new String(payload.getJson(), StandardCharsets.UTF_8));
+        assertEquals(PdbBuild.SUCCESS, json.getInt("buildStatus"));
+        assertTrue(json.getBoolean("psfBuilt"));
+        assertEquals(PDBFileController.fileToString(pdb.toString()), json.getString("pdb"));
+        assertEquals(PDBFileController.fileToString(pdb.toString()), PDBFileController.toText(Files.readAllBytes(pdb)));
+        assertEquals(entry.getLinkages(), json.getString("linkages"));
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload.getGzip())))
+        {
+            assertArrayEquals(payload.getJson(), StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    @Test
+    void failedBuildIsRenderedInMemory() throws Exception
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", "");
+        build.setBuildFailed();
+        build.setFailReason("Unsupported Residues: aDXyz");
+
+        FileTextPayload payload = FileTextPayload.of(build);
+        JSONObject json = new JSONObject(new String(payload.getJson(), StandardCharsets.UTF_8));
+        assertEquals("Unsupported Residues: aDXyz", json.getString("failReason"));
+        assertNull(payload.getGzip());
+    }
+}
@@ -4,6 +4,7 @@ import com.uct.carbbuilder.CarbBuilderApplication;
 import com.uct.carbbuilder.model.build.PdbBuild;
 import com.uct.carbbuilder.model.build.PdbBuildAccessService;
 import com.uct.carbbuilder.model.pdbmanager.PdbEntryAccessService;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
@@ -14,6 +15,9 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
@@ -51,6 +55,34 @@ class PDBFileControllerTest
         assertEquals(removeDate(String.valueOf(respObj.get("pdb"))), removeDate(PDBFileController.fileToString("testpdb/test1.pdb")));
     }
 
+    @Test
+    void getBuildStatuses() throws Exception
+    {
+        String dihedral = UUID.randomUUID().toString();
+        PdbBuild success = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", dihedral);
+        success.setBuildSuccess();
+        success.setPsfBuilt(true);
+        testPdbBuildService.save(success);
+        PdbBuild failed = new PdbBuild("aDMan(1->2)aDMan", 1, "1.0", dihedral);
+        failed.setBuildFailed();
+        failed.setFailReason("Unsupported Residues: aDXyz");
+        testPdbBuildService.save(failed);
+        String unknown = PdbBuild.getBuildHash("aDMan(1->4)aDMan", 1, "1.0", dihedral);
+
+        MvcResult result = mvc.perform(get("/carbbuilder/file/status").servletPath("/carbbuilder").param("hash", failed.getBuildHash(), unknown, success.getBuildHash()))
+                .andExpect(status().isOk()).andReturn();
+        JSONArray records = new JSONArray(result.getResponse().getContentAsString());
+        assertEquals(3, records.length());
+        assertEquals("Unsupported Residues: aDXyz", records.getJSONObject(0).getString("failReason"));
+        assertTrue(records.getJSONObject(1).isNull("buildStatus"));
+        assertEquals(PdbBuild.SUCCESS, records.getJSONObject(2).getInt("buildStatus"));
+        assertTrue(records.getJSONObject(2).getBoolean("psfBuilt"));
+
+        String etag = result.getResponse().getHeader("ETag");
+        mvc.perform(get("/carbbuilder/file/status").servletPath("/carbbuilder").param("hash", failed.getBuildHash(), unknown, success.getBuildHash()).header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+    }
+
     private String removeDate(String pdb)
     {
         String firstRemoved = pdb.substring(pdb.indexOf('\n') + 1);
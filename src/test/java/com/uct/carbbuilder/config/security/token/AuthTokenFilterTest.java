@@ -0,0 +1,108 @@
+package com.uct.carbbuilder.config.security.token;
+
+import com.uct.carbbuilder.config.security.user.UserDetailsImpl;
+import com.uct.carbbuilder.config.security.user.UserDetailsServiceImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class AuthTokenFilterTest
+{
+    private JwtUtils jwtUtils;
+    private UserDetailsServiceImpl userDetailsService;
+    private AuthTokenFilter filter;
+    private String token;
+
+    @BeforeEach
+    void setUp()
+    {
+        jwtUtils = new JwtUtils();
+        ReflectionTestUtils.setField(jwtUtils, "jwtSecret", "carbbuilderTestSecretKey");
+        ReflectionTestUtils.setField(jwtUtils, "jwtExpirationMs", 60000);
+        jwtUtils = Mockito.spy(jwtUtils);
+        userDetailsService = Mockito.mock(UserDetailsServiceImpl.class);
+
+        filter = new AuthTokenFilter();
+        ReflectionTestUtils.setField(filter, "jwtUtils", jwtUtils);
+        ReflectionTestUtils.setField(filter, "verifiedTokens", new VerifiedTokenCache(100, new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(filter, "userDetailsService", userDetailsService);
+        ReflectionTestUtils.setField(filter, "meterRegistry", new SimpleMeterRegistry());
+
+        UserDetailsImpl user = new UserDetailsImpl(42L, "tristan", "tristan@example.com", "secret",
+                Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+        token = jwtUtils.generateJwtToken(new UsernamePasswordAuthenticationToken(user, null, user.getAuthorities()));
+    }
+
+    @AfterEach
+    void clearContext()
+    {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void tokenIsVerifiedOnceAndNeverLoadsTheUser() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            SecurityContextHolder.clearContext();
+            filter.doFilter(request("/carbbuilder/build", token), new MockHttpServletResponse(), new MockFilterChain());
+
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            UserDetailsImpl principal = (UserDetailsImpl) authentication.getPrincipal();
+            assertEquals(42L, principal.getId());
+            assertEquals("tristan", principal.getUsername());
+            assertEquals("tristan@example.com", principal.getEmail());
+            assertEquals(Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")), authentication.getAuthorities());
+        }
+        verify(jwtUtils, times(1)).parseJwtToken(token);
+        verifyNoInteractions(userDetailsService);
+    }
+
+    @Test
+    void invalidTokenIsNotAuthenticated() throws Exception
+    {
+        String tampered = token.substring(0, token.length() - 4) + "AAAA";
+
+        filter.doFilter(request("/carbbuilder/build", tampered), new MockHttpServletResponse(), new MockFilterChain());
+
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    @Test
+    void publicFileRequestsSkipTheToken() throws Exception
+    {
+        assertTrue(filter.shouldNotFilter(request("/file/text/abc", token)));
+        assertTrue(filter.shouldNotFilter(request("/actuator/prometheus", token)));
+        assertFalse(filter.shouldNotFilter(request("/carbbuilder/build", token)));
+
+        filter.doFilter(request("/file/download/pdb/abc", token), new MockHttpServletResponse(), new MockFilterChain());
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+        verify(jwtUtils, times(0)).parseJwtToken(token);
+    }
+
+    private static MockHttpServletRequest request(String path, String token)
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/carbbuilder" + path);
+        request.setServletPath("/carbbuilder");
+        request.setPathInfo(path);
+        request.addHeader("Authorization", "Bearer " + token);
+        return request;
+    }
+}
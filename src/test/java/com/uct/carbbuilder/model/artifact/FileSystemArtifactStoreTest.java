@@ -0,0 +1,96 @@
+package com.uct.carbbuilder.model.artifact;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.StreamUtils;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileSystemArtifactStoreTest
+{
+    @TempDir
+    Path root;
+
+    @Test
+    void identicalContentIsStoredOnceUnderItsShard() throws Exception
+    {
+        FileSystemArtifactStore store = new FileSystemArtifactStore(root);
+        Path pdb = Paths.get("testpdb", "test1.pdb");
+
+        String digest = store.put(pdb, ArtifactType.PDB);
+        assertEquals(digest, store.put(Files.readAllBytes(pdb), ArtifactType.PDB));
+
+        Path stored = store.path(digest, ArtifactType.PDB, false);
+        assertEquals(root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest + ".pdb"), stored);
+        try (Stream<Path> files = Files.walk(root))
+        {
+            assertEquals(2, files.filter(Files::isRegularFile).count());
+        }
+        assertArrayEquals(Files.readAllBytes(pdb), store.get(digest, ArtifactType.PDB, false).get().readAllBytes());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(store.path(digest, ArtifactType.PDB, true))))
+        {
+            assertArrayEquals(Files.readAllBytes(pdb), StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    @Test
+    void logsAreNotCompressedAndCanBeDeleted() throws Exception
+    {
+        FileSystemArtifactStore store = new FileSystemArtifactStore(root);
+
+        String digest = store.put("Syntax error!\n".getBytes(StandardCharsets.UTF_8), ArtifactType.LOG);
+        assertTrue(store.get(digest, ArtifactType.LOG, false).isPresent());
+        assertFalse(store.get(digest, ArtifactType.LOG, true).isPresent());
+        assertFalse(store.get(digest, ArtifactType.PDB, false).isPresent());
+
+        assertTrue(store.delete(digest, ArtifactType.LOG, System.currentTimeMillis()));
+        assertFalse(store.get(digest, ArtifactType.LOG, false).isPresent());
+        assertFalse(store.get("../../etc/passwd", ArtifactType.LOG, false).isPresent());
+    }
+
+    @Test
+    void putBetweenReferenceCheckAndDeleteKeepsArtifact() throws Exception
+    {
+        FileSystemArtifactStore store = new FileSystemArtifactStore(root);
+        byte[] content = ("ATOM " + UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8);
+        String digest = store.put(content, ArtifactType.PDB);
+        age(store, digest);
+        long writtenBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+        // Retention found no reference, then a build put the same content before the delete
+        assertEquals(digest, store.put(content, ArtifactType.PDB));
+        assertFalse(store.delete(digest, ArtifactType.PDB, writtenBefore));
+        assertArrayEquals(content, store.get(digest, ArtifactType.PDB, false).get().readAllBytes());
+        assertTrue(store.get(digest, ArtifactType.PDB, true).isPresent());
+
+        age(store, digest);
+        assertTrue(store.delete(digest, ArtifactType.PDB, writtenBefore));
+        assertFalse(store.get(digest, ArtifactType.PDB, false).isPresent());
+        try (Stream<Path> files = Files.walk(root))
+        {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+
+        // A put that finds it deleted writes it again
+        store.put(content, ArtifactType.PDB);
+        assertArrayEquals(content, store.get(digest, ArtifactType.PDB, false).get().readAllBytes());
+    }
+
+    private static void age(FileSystemArtifactStore store, String digest) throws Exception
+    {
+        FileTime twoHoursAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+        Files.setLastModifiedTime(store.path(digest, ArtifactType.PDB, false), twoHoursAgo);
+        Files.setLastModifiedTime(store.path(digest, ArtifactType.PDB, true), twoHoursAgo);
+    }
+}
@@ -0,0 +1,83 @@
+package com.uct.carbbuilder.model.artifact;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JdbcArtifactStoreTest
+{
+    private JdbcTemplate jdbcTemplate;
+    private JdbcArtifactStore store;
+
+    @BeforeEach
+    void setUp()
+    {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:artifacts;DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("DROP TABLE IF EXISTS stored_artifact");
+        jdbcTemplate.execute("CREATE TABLE stored_artifact (name VARCHAR(80) PRIMARY KEY, length BIGINT NOT NULL, content BLOB, write_date TIMESTAMP)");
+        store = new JdbcArtifactStore(jdbcTemplate);
+    }
+
+    @Test
+    void storesContentOnceAndStreamsRanges() throws Exception
+    {
+        Path pdb = Paths.get("testpdb", "test1.pdb");
+        byte[] bytes = Files.readAllBytes(pdb);
+
+        String digest = store.put(pdb, ArtifactType.PDB);
+        assertEquals(digest, store.put(bytes, ArtifactType.PDB));
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM stored_artifact", Integer.class));
+
+        Artifact artifact = store.get(digest, ArtifactType.PDB, false).get();
+        assertEquals(bytes.length, artifact.length());
+        assertArrayEquals(bytes, artifact.readAllBytes());
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        assertEquals(10, artifact.transferTo(10, 10, Channels.newChannel(range)));
+        assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), range.toByteArray());
+
+        assertTrue(store.delete(digest, ArtifactType.PDB, System.currentTimeMillis()));
+        assertFalse(store.get(digest, ArtifactType.PDB, false).isPresent());
+        assertFalse(store.get(digest, ArtifactType.PDB, true).isPresent());
+    }
+
+    @Test
+    void putBetweenReferenceCheckAndDeleteKeepsArtifact() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(Paths.get("testpdb", "test1.pdb"));
+        String digest = store.put(bytes, ArtifactType.PDB);
+        age();
+        long writtenBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+        // Retention found no reference, then a build put the same content before the delete
+        store.put(bytes, ArtifactType.PDB);
+        assertFalse(store.delete(digest, ArtifactType.PDB, writtenBefore));
+        assertArrayEquals(bytes, store.get(digest, ArtifactType.PDB, false).get().readAllBytes());
+        assertTrue(store.get(digest, ArtifactType.PDB, true).isPresent());
+
+        age();
+        assertTrue(store.delete(digest, ArtifactType.PDB, writtenBefore));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM stored_artifact", Integer.class));
+
+        // A put that finds it deleted inserts it again
+        store.put(bytes, ArtifactType.PDB);
+        assertArrayEquals(bytes, store.get(digest, ArtifactType.PDB, false).get().readAllBytes());
+    }
+
+    private void age()
+    {
+        jdbcTemplate.update("UPDATE stored_artifact SET write_date = ?", new Timestamp(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    }
+}
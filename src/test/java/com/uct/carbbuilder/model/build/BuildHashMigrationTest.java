@@ -0,0 +1,61 @@
+package com.uct.carbbuilder.model.build;
+
+import com.uct.carbbuilder.CarbBuilderApplication;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(classes = CarbBuilderApplication.class)
+@TestPropertySource(locations = "classpath:application-integrationtest.properties")
+class BuildHashMigrationTest
+{
+    @Autowired
+    private BuildHashMigration buildHashMigration;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    @Test
+    void legacyBuildsGetHexKeyAndStayResolvable() throws Exception
+    {
+        String dihedral = UUID.randomUUID().toString();
+        String hash = PdbBuild.getBuildHash("aDGlc(1->6)aDMan", 1, "1.0", dihedral);
+        String legacyHash = PdbBuild.getLegacyBuildHash("aDGlc(1->6)aDMan", 1, "1.0", dihedral);
+        PdbBuild build = new PdbBuild("aDGlc(1->6)aDMan", 1, "1.0", dihedral);
+        build.setBuildHash(null);
+        build.setLegacyBuildHash(legacyHash);
+        build.setBuildSuccess();
+        pdbBuildAccess.save(build);
+        assertFalse(pdbBuildAccess.findByBuildHash(hash).isPresent());
+        assertTrue(pdbBuildAccess.findByBuildHash(legacyHash).isPresent());
+
+        buildHashMigration.migrate();
+
+        PdbBuild migrated = pdbBuildAccess.findByBuildHash(hash).get();
+        assertEquals(legacyHash, migrated.getLegacyBuildHash());
+        assertEquals(migrated.getId(), pdbBuildAccess.findByBuildHash(legacyHash).get().getId());
+    }
+
+    @Test
+    void conflictingLegacyBuildKeepsItsLegacyHash() throws Exception
+    {
+        String dihedral = UUID.randomUUID().toString();
+        String legacyHash = PdbBuild.getLegacyBuildHash("aDGlc(1->6)aDMan", 1, "1.0", dihedral);
+        PdbBuild legacy = new PdbBuild("aDGlc(1->6)aDMan", 1, "1.0", dihedral);
+        legacy.setBuildHash(null);
+        legacy.setLegacyBuildHash(legacyHash);
+        pdbBuildAccess.save(legacy);
+        PdbBuild resubmitted = new PdbBuild("aDGlc(1->6)aDMan", 1, "1.0", dihedral);
+        assertTrue(pdbBuildAccess.insertIfAbsent(resubmitted));
+
+        buildHashMigration.migrate();
+
+        assertNull(pdbBuildAccess.findByBuildHash(legacyHash).get().getBuildHash());
+        assertEquals(resubmitted.getId(), pdbBuildAccess.findByBuildHash(resubmitted.getBuildHash()).get().getId());
+    }
+}
@@ -0,0 +1,71 @@
+package com.uct.carbbuilder.model.build;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildInputCanonicalizerTest
+{
+    // Each group holds inputs that must build the same structure: {casperInput, noRepeatingUnits, customDihedral}
+    private static final Object[][][] EQUIVALENT = {
+            {
+                    {"aDMan(1->3)aDMan", 1, ""},
+                    {" aDMan(1->3)aDMan\n", 1, null},
+                    {"aDMan (1->3) aDMan", 1, "\n\n"},
+                    {"aDMan(1-3)aDMan", 1, "// no custom dihedrals"},
+                    {"aDMan(1→3)aDMan", 1, "   "},
+            },
+            {
+                    {"aDGlc(1->2)aDGlc", 0, "aDGlc 1 2 aDGlc,2,-26 -36,-39 169,-26 41,-151 24"},
+                    {"aDGlc(1->2)aDGlc", 0, "aDGlc 1 2 aDGlc,2,-26.0 -36,-39 169.00,-26 41,-151 24.0"},
+                    {"aDGlc(1->2)aDGlc", 0, " aDGlc  1 2\taDGlc , 2.0 ,-26 -36, -39  169,-26 41,-151 +24 \n"},
+            },
+            {
+                    {"aDGlc(1->4)[bDGal(1->3)]bDGlc", 0, "aDGlc 1 4 bDGlc,2,60 180\nbDGal 1 3 bDGlc,2,-60 120,-60 -0"},
+                    {"aDGlc(1->4)[bDGal(1->3)]bDGlc", -1, "bDGal 1 3 bDGlc,2,-60.0 120.00,-60 0.0\r\naDGlc 1 4 bDGlc,2,60 180"},
+                    {"aDGlc(1->4) [bDGal(1->3)] bDGlc", 0, "# linkage overrides\n  aDGlc  1 4\tbDGlc,2,+60 1.8e2  \n\nbDGal 1 3 bDGlc,2,-60 120,-60 0\n"},
+            },
+    };
+
+    @Test
+    void equivalentInputsShareOneBuildHash() throws NoSuchAlgorithmException
+    {
+        Set<String> groupHashes = new HashSet<>();
+        for (Object[][] group : EQUIVALENT)
+        {
+            Set<String> hashes = new HashSet<>();
+            for (Object[] input : group)
+                hashes.add(PdbBuild.getBuildHash((String) input[0], (Integer) input[1], "1.0", (String) input[2]));
+            assertEquals(1, hashes.size(), "Inputs should share a hash: " + group[0][0]);
+            groupHashes.addAll(hashes);
+        }
+        assertEquals(EQUIVALENT.length, groupHashes.size());
+    }
+
+    @Test
+    void differentInputsKeepDifferentHashes() throws NoSuchAlgorithmException
+    {
+        String hash = PdbBuild.getBuildHash("aDMan(1->3)aDMan", 1, "1.0", "aDMan 1 3 aDMan,2,60 180,-60 120");
+        assertNotEquals(hash, PdbBuild.getBuildHash("aDMan(1->2)aDMan", 1, "1.0", "aDMan 1 3 aDMan,2,60 180,-60 120"));
+        assertNotEquals(hash, PdbBuild.getBuildHash("aDMan(1->3)aDMan", 2, "1.0", "aDMan 1 3 aDMan,2,60 180,-60 120"));
+        assertNotEquals(hash, PdbBuild.getBuildHash("aDMan(1->3)aDMan", 1, "1.0", "aDMan 1 3 aDMan,2,60.5 180,-60 120"));
+        assertNotEquals(hash, PdbBuild.getBuildHash("aDMan(1->3)aDMan", 1, "1.0", "aDMan 1 3 aDMan,2,180 60,-60 120"));
+        assertNotEquals(hash, PdbBuild.getBuildHash("aDMan(1->3)aDMan", 1, "1.0", "aDMan 1 3 aDMan,2,-60 120,60 180"));
+        assertNotEquals(hash, PdbBuild.getBuildHash("aDMan(1->3)aDMan", 1, "1.0", "aDMan 1 3 aDMan,2,60 180 -60 120"));
+    }
+
+    @Test
+    void canonicalFormIsStoredAndStable() throws NoSuchAlgorithmException
+    {
+        PdbBuild build = new PdbBuild("aDMan (1-3) aDMan", -2, "1.0", "bDGal 1 3 bDGlc, 2, -60.0 120\n# note\naDGlc 1 2 aDGlc,2,-26 -36.50,-39 169");
+        assertEquals("aDMan(1->3)aDMan", build.getCasperInput());
+        assertEquals(0, build.getNoRepeatingUnits());
+        assertEquals("aDGlc 1 2 aDGlc,2,-26 -36.5,-39 169\nbDGal 1 3 bDGlc,2,-60 120", build.getCustomDihedral());
+        assertEquals(build.getCustomDihedral(), BuildInputCanonicalizer.dihedrals(build.getCustomDihedral()));
+        assertEquals(build.getBuildHash(), PdbBuild.getBuildHash(build.getCasperInput(), build.getNoRepeatingUnits(), "1.0", build.getCustomDihedral()));
+    }
+}
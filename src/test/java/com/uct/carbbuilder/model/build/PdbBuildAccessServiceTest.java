@@ -7,14 +7,19 @@ import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
+@TestPropertySource(locations = "classpath:application-integrationtest.properties")
 class PdbBuildAccessServiceTest
 {
     @Autowired
@@ -51,4 +56,57 @@ class PdbBuildAccessServiceTest
 
     }
 
-}
\ No newline at end of file
+    @Test
+    void finishedBuildIsReadOnceUntilSaved() throws NoSuchAlgorithmException
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->2)aDMan", 1, "1", "");
+        build.setBuildSuccess();
+        Mockito.when(pdbBuildAccess.findByHash(build.getBuildHash())).thenReturn(Optional.of(build));
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(testPdbBuildService.findByBuildHash(build.getBuildHash()).isPresent());
+        verify(pdbBuildAccess, times(1)).findByHash(build.getBuildHash());
+
+        testPdbBuildService.save(build);
+        testPdbBuildService.findByBuildHash(build.getBuildHash());
+        verify(pdbBuildAccess, times(2)).findByHash(build.getBuildHash());
+    }
+
+    @Test
+    void inProgressBuildIsNotCached() throws NoSuchAlgorithmException
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->3)aDGlc", 1, "1", "");
+        Mockito.when(pdbBuildAccess.findByHash(build.getBuildHash())).thenReturn(Optional.of(build));
+
+        testPdbBuildService.findByBuildHash(build.getBuildHash());
+        testPdbBuildService.findByBuildHash(build.getBuildHash());
+        verify(pdbBuildAccess, times(2)).findByHash(build.getBuildHash());
+    }
+
+    @Test
+    void evictedBuildIsNotCached() throws NoSuchAlgorithmException
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->6)aDGlc", 1, "1", "");
+        build.setBuildEvicted();
+        Mockito.when(pdbBuildAccess.findByHash(build.getBuildHash())).thenReturn(Optional.of(build));
+
+        testPdbBuildService.findByBuildHash(build.getBuildHash());
+        testPdbBuildService.findByBuildHash(build.getBuildHash());
+        verify(pdbBuildAccess, times(2)).findByHash(build.getBuildHash());
+    }
+
+    @Test
+    void unknownHashIsRememberedUntilInserted() throws NoSuchAlgorithmException
+    {
+        PdbBuild build = new PdbBuild("aDMan(1->4)aDGal", 1, "1", "");
+        Mockito.when(pdbBuildAccess.findByHash(build.getBuildHash())).thenReturn(Optional.empty());
+
+        assertFalse(testPdbBuildService.findByBuildHash(build.getBuildHash()).isPresent());
+        assertFalse(testPdbBuildService.findByBuildHash(build.getBuildHash()).isPresent());
+        verify(pdbBuildAccess, times(1)).findByHash(build.getBuildHash());
+
+        testPdbBuildService.insertIfAbsent(build);
+        Mockito.when(pdbBuildAccess.findByHash(build.getBuildHash())).thenReturn(Optional.of(build));
+        assertTrue(testPdbBuildService.findByBuildHash(build.getBuildHash()).isPresent());
+    }
+}
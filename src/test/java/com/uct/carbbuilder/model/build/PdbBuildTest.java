@@ -27,7 +27,7 @@ class PdbBuildTest
         assertEquals(test.getNoRepeatingUnits(), 1);
         assertEquals(test.getCarbBuilderVersion(), "1");
         assertEquals(test.getCustomDihedral(), "CustomDihedrals");
-        assertEquals(test.getBuildHash(), "23129284042R22125M94p124EB29c41g6139fc0s94k123k15t64");
+        assertEquals(test.getBuildHash(), "1701e31cd82a521683b35e708445bee363d767c3d99a9d30735e6b7b6b0f7440");
 
         CarbBuilderRequest request = new CarbBuilderRequest();
         request.setCasperInput("Casper");
@@ -38,7 +38,7 @@ class PdbBuildTest
         assertEquals(test.getNoRepeatingUnits(), 1);
         assertEquals(test.getCarbBuilderVersion(), "1");
         assertEquals(test.getCustomDihedral(), "CustomDihedrals");
-        assertEquals(test.getBuildHash(), "23129284042R22125M94p124EB29c41g6139fc0s94k123k15t64");
+        assertEquals(test.getBuildHash(), "1701e31cd82a521683b35e708445bee363d767c3d99a9d30735e6b7b6b0f7440");
 
     }
 
@@ -58,10 +58,18 @@ class PdbBuildTest
         assertNotEquals(hash1, hash5);
         assertNotEquals(hash1, hash6);
         assertEquals(hash1, hash7);
-        assertEquals(hash1, "23129284042R22125M94p124EB29c41g6139fc0s94k123k15t64");
+        assertEquals(hash1, "1701e31cd82a521683b35e708445bee363d767c3d99a9d30735e6b7b6b0f7440");
 
     }
 
+    @Test
+    void getLegacyBuildHash() throws NoSuchAlgorithmException
+    {
+        assertEquals(PdbBuild.getLegacyBuildHash("Casper",1,"1","CustomDihedrals"), "23129284042R22125M94p124EB29c41g6139fc0s94k123k15t64");
+        assertTrue(PdbBuild.isHexHash(PdbBuild.getBuildHash("Casper",1,"1","CustomDihedrals")));
+        assertFalse(PdbBuild.isHexHash("23129284042R22125M94p124EB29c41g6139fc0s94k123k15t64"));
+    }
+
     @Test
     void isBuildInProgress()
     {
@@ -0,0 +1,96 @@
+package com.uct.carbbuilder.model.queue;
+
+import com.uct.carbbuilder.CarbBuilderApplication;
+import com.uct.carbbuilder.api.carbbuilder.BuildScheduler;
+import com.uct.carbbuilder.model.build.PdbBuild;
+import com.uct.carbbuilder.model.build.PdbBuildAccessService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(classes = CarbBuilderApplication.class)
+@TestPropertySource(locations = "classpath:application-integrationtest.properties")
+class BuildQueueAccessServiceTest
+{
+    @Autowired
+    private BuildQueueAccessService buildQueue;
+
+    @Autowired
+    private PdbBuildAccessService pdbBuildAccess;
+
+    // Keeps the scheduler from claiming the entries under test
+    @MockBean
+    private BuildScheduler buildScheduler;
+
+    @Test
+    void claimSharesWorkersBetweenSubmitters() throws Exception
+    {
+        String heavy = "user:" + UUID.randomUUID();
+        String light = "anonymous:" + UUID.randomUUID();
+        for (PdbBuild build : builds(6))
+            buildQueue.enqueue(new BuildQueueEntry(build, heavy, BuildPriority.BATCH));
+        buildQueue.enqueue(new BuildQueueEntry(builds(1).get(0), light, BuildPriority.INTERACTIVE_ANONYMOUS));
+        String owner = "node-" + UUID.randomUUID();
+
+        List<BuildQueueEntry> claimed = buildQueue.claim(owner, 4, 60000, new FairShareAllocator(2, 1));
+
+        assertEquals(3, claimed.size());
+        assertEquals(light, claimed.stream().filter(e -> e.getPriority() == BuildPriority.INTERACTIVE_ANONYMOUS.toShort()).findFirst().get().getSubmitter());
+        assertEquals(2, claimed.stream().filter(e -> heavy.equals(e.getSubmitter())).count());
+        assertTrue(buildQueue.claim(owner, 4, 60000, new FairShareAllocator(2, 1)).isEmpty());
+
+        claimed.forEach(buildQueue::complete);
+        assertEquals(2, buildQueue.claim(owner, 4, 60000, new FairShareAllocator(2, 1)).size());
+    }
+
+    @Test
+    void claimRunsShortBuildsFirstWithAging() throws Exception
+    {
+        String submitter = "user:" + UUID.randomUUID();
+        List<PdbBuild> builds = builds(3);
+        BuildQueueEntry polymer = new BuildQueueEntry(builds.get(0), submitter, BuildPriority.INTERACTIVE);
+        polymer.schedule(600000, 1.0);
+        BuildQueueEntry small = new BuildQueueEntry(builds.get(1), submitter, BuildPriority.INTERACTIVE);
+        small.schedule(2000, 1.0);
+        BuildQueueEntry starved = new BuildQueueEntry(builds.get(2), submitter, BuildPriority.INTERACTIVE);
+        starved.setEnqueueDate(new Date(System.currentTimeMillis() - 3600000));
+        starved.schedule(900000, 1.0);
+        buildQueue.enqueue(polymer);
+        buildQueue.enqueue(small);
+        buildQueue.enqueue(starved);
+        String owner = "node-" + UUID.randomUUID();
+
+        assertEquals(2000 + 900000, buildQueue.sumEstimatedAhead(buildQueue.findByBuildHash(builds.get(0).getBuildHash()).get()));
+        assertEquals(builds.get(2).getId(), claimNext(owner));
+        assertEquals(builds.get(1).getId(), claimNext(owner));
+        assertEquals(builds.get(0).getId(), claimNext(owner));
+    }
+
+    private long claimNext(String owner)
+    {
+        List<BuildQueueEntry> leased = buildQueue.claim(owner, 1, 60000, new FairShareAllocator(1, 1));
+        leased.forEach(buildQueue::complete);
+        return leased.get(0).getBuildId();
+    }
+
+    private List<PdbBuild> builds(int count) throws Exception
+    {
+        List<PdbBuild> builds = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            PdbBuild build = new PdbBuild("aDMan(1->3)aDMan", 1, "1.0", UUID.randomUUID().toString());
+            pdbBuildAccess.save(build);
+            builds.add(build);
+        }
+        return builds;
+    }
+}
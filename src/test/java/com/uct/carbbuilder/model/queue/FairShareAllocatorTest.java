@@ -0,0 +1,83 @@
+package com.uct.carbbuilder.model.queue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairShareAllocatorTest
+{
+    private final FairShareAllocator fairShare = new FairShareAllocator(2, 1);
+
+    @Test
+    void heavySubmitterOnlyGetsTheirQuota()
+    {
+        FairShareAllocator.Head heavy = head(BuildPriority.BATCH, "user:1", 500, 1);
+        FairShareAllocator.Head light = head(BuildPriority.BATCH, "user:2", 1, 400);
+
+        Map<FairShareAllocator.Head, Integer> allocation = fairShare.allocate(Arrays.asList(heavy, light), Collections.emptyMap(), 8);
+
+        assertEquals(2, allocation.get(heavy));
+        assertEquals(1, allocation.get(light));
+    }
+
+    @Test
+    void recoveredBuildsUseEveryFreeWorker()
+    {
+        FairShareAllocator.Head recovered = head(BuildPriority.BATCH, BuildQueueEntry.SYSTEM_SUBMITTER, 500, 1);
+        FairShareAllocator.Head batch = head(BuildPriority.BATCH, "user:1", 5, 400);
+
+        Map<FairShareAllocator.Head, Integer> allocation = fairShare.allocate(Collections.singletonList(recovered),
+                Collections.singletonMap(BuildQueueEntry.SYSTEM_SUBMITTER, 2L), 8);
+        assertEquals(8, allocation.get(recovered));
+
+        // Users still get their share of the workers before recovery takes the rest
+        allocation = fairShare.allocate(Arrays.asList(recovered, batch), Collections.singletonMap(BuildQueueEntry.SYSTEM_SUBMITTER, 2L), 8);
+        assertEquals(2, allocation.get(batch));
+        assertEquals(6, allocation.get(recovered));
+    }
+
+    @Test
+    void higherClassesAreServedFirst()
+    {
+        FairShareAllocator.Head batch = head(BuildPriority.BATCH, "user:1", 5, 1);
+        FairShareAllocator.Head anonymous = head(BuildPriority.INTERACTIVE_ANONYMOUS, "anonymous:10.0.0.1", 3, 50);
+        FairShareAllocator.Head interactive = head(BuildPriority.INTERACTIVE, "user:2", 1, 90);
+
+        Map<FairShareAllocator.Head, Integer> allocation = fairShare.allocate(Arrays.asList(batch, anonymous, interactive), Collections.emptyMap(), 2);
+
+        assertEquals(1, allocation.get(interactive));
+        assertEquals(1, allocation.get(anonymous));
+        assertNull(allocation.get(batch));
+    }
+
+    @Test
+    void leastLoadedSubmitterGoesFirstWithinAClass()
+    {
+        FairShareAllocator.Head busy = head(BuildPriority.INTERACTIVE, "user:1", 3, 1);
+        FairShareAllocator.Head idle = head(BuildPriority.INTERACTIVE, "user:2", 3, 2);
+        Map<String, Long> leased = new HashMap<>();
+        leased.put("user:1", 1L);
+
+        Map<FairShareAllocator.Head, Integer> allocation = fairShare.allocate(Arrays.asList(busy, idle), leased, 1);
+
+        assertEquals(Collections.singletonMap(idle, 1), allocation);
+    }
+
+    @Test
+    void submitterAtQuotaOnAnotherNodeWaits()
+    {
+        FairShareAllocator.Head head = head(BuildPriority.INTERACTIVE_ANONYMOUS, "anonymous:10.0.0.1", 2, 1);
+
+        assertTrue(fairShare.allocate(Collections.singletonList(head), Collections.singletonMap("anonymous:10.0.0.1", 1L), 4).isEmpty());
+    }
+
+    private static FairShareAllocator.Head head(BuildPriority priority, String submitter, long pending, long nextKey)
+    {
+        return new FairShareAllocator.Head(priority.toShort(), submitter, pending, nextKey);
+    }
+}